@@ -0,0 +1,214 @@
+package surfstore;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import surfstore.SurfStoreBasic.Block;
+
+/*
+ * Byte bounded cache of blocks with W-TinyLFU admission. New blocks enter a
+ * small LRU window. A block pushed out of the window only gets into the main
+ * part, a segmented LRU of a probation and a protected queue, if it has been
+ * asked for more often than the blocks it would push out there. How often a
+ * block was asked for is estimated by a count-min sketch whose counters are
+ * halved every so often, so a scan over cold blocks can't flush the blocks
+ * that are read over and over, and blocks that went cold age out.
+ *
+ * Blocks are cached with their compressed flag, so a block always comes back
+ * the way it was stored when it was cached. Not thread safe,
+ * SegmentBlockStorage keeps one per stripe under the stripe's monitor.
+ */
+class BlockCache {
+    // Shares of the capacity taken by the window, and by the protected queue within the main part
+    private static final int WINDOW_PERCENT = 1;
+    private static final int PROTECTED_PERCENT = 80;
+    // Used to size the sketch for the number of blocks that fit
+    private static final int TYPICAL_BLOCK_SIZE = 4096;
+
+    private final long windowCapacity;
+    private final long mainCapacity;
+    private final long protectedCapacity;
+
+    // In access order, the least recently used block comes first
+    private final LinkedHashMap<String, Block> window = new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<String, Block> probation = new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<String, Block> protectedBlocks = new LinkedHashMap<>(16, 0.75f, true);
+    private long windowSize;
+    private long probationSize;
+    private long protectedSize;
+
+    private final FrequencySketch sketch;
+    private long hits;
+    private long misses;
+
+    BlockCache(long capacity) {
+        this.windowCapacity = capacity * WINDOW_PERCENT / 100;
+        this.mainCapacity = capacity - windowCapacity;
+        this.protectedCapacity = mainCapacity * PROTECTED_PERCENT / 100;
+        this.sketch = new FrequencySketch((int) Math.min(capacity / TYPICAL_BLOCK_SIZE, 1 << 24));
+    }
+
+    Block get(String hash) {
+        sketch.increment(hash);
+
+        Block block = window.get(hash);
+        if (block == null) {
+            block = protectedBlocks.get(hash);
+        }
+        if (block == null) {
+            // A second hit while on probation makes a block protected
+            block = probation.remove(hash);
+            if (block != null) {
+                probationSize -= size(block);
+                protect(hash, block);
+            }
+        }
+
+        if (block != null) {
+            hits++;
+        } else {
+            misses++;
+        }
+        return block;
+    }
+
+    void put(String hash, Block block) {
+        if (size(block) > mainCapacity || window.containsKey(hash) || probation.containsKey(hash)
+                || protectedBlocks.containsKey(hash)) {
+            return;
+        }
+
+        window.put(hash, block);
+        windowSize += size(block);
+        Iterator<Map.Entry<String, Block>> it = window.entrySet().iterator();
+        while (windowSize > windowCapacity && it.hasNext()) {
+            Map.Entry<String, Block> candidate = it.next();
+            it.remove();
+            windowSize -= size(candidate.getValue());
+            admit(candidate.getKey(), candidate.getValue());
+        }
+    }
+
+    void remove(String hash) {
+        Block block;
+        if ((block = window.remove(hash)) != null) {
+            windowSize -= size(block);
+        } else if ((block = probation.remove(hash)) != null) {
+            probationSize -= size(block);
+        } else if ((block = protectedBlocks.remove(hash)) != null) {
+            protectedSize -= size(block);
+        }
+    }
+
+    // How often the block was asked for lately, as estimated by the sketch
+    int frequency(String hash) {
+        return sketch.frequency(hash);
+    }
+
+    long hits() {
+        return hits;
+    }
+
+    long misses() {
+        return misses;
+    }
+
+    private static int size(Block block) {
+        return block.getData().size();
+    }
+
+    // A block leaving the window replaces the least recently used blocks of the main part
+    // only if it is more popular than each of them, otherwise it is dropped
+    private void admit(String hash, Block block) {
+        int frequency = sketch.frequency(hash);
+        while (probationSize + protectedSize + size(block) > mainCapacity) {
+            boolean fromProbation = !probation.isEmpty();
+            Map.Entry<String, Block> victim = (fromProbation ? probation : protectedBlocks).entrySet().iterator()
+                    .next();
+            if (sketch.frequency(victim.getKey()) >= frequency) {
+                return;
+            }
+
+            if (fromProbation) {
+                probation.remove(victim.getKey());
+                probationSize -= size(victim.getValue());
+            } else {
+                protectedBlocks.remove(victim.getKey());
+                protectedSize -= size(victim.getValue());
+            }
+        }
+
+        probation.put(hash, block);
+        probationSize += size(block);
+    }
+
+    private void protect(String hash, Block block) {
+        protectedBlocks.put(hash, block);
+        protectedSize += size(block);
+
+        // Blocks that fall out of the protected queue get another chance on probation
+        Iterator<Map.Entry<String, Block>> it = protectedBlocks.entrySet().iterator();
+        while (protectedSize > protectedCapacity && it.hasNext()) {
+            Map.Entry<String, Block> demoted = it.next();
+            it.remove();
+            protectedSize -= size(demoted.getValue());
+            probation.put(demoted.getKey(), demoted.getValue());
+            probationSize += size(demoted.getValue());
+        }
+    }
+
+    // Count-min sketch with DEPTH rows of counters that saturate at MAX_COUNT. After
+    // 10 * width increments every counter is halved.
+    private static class FrequencySketch {
+        private static final int DEPTH = 4;
+        private static final int MAX_COUNT = 15;
+        private static final int[] SEEDS = {0x9e3779b9, 0x85ebca6b, 0xc2b2ae35, 0x27d4eb2f};
+
+        private final byte[][] counters;
+        private final int mask;
+        private final int sampleSize;
+        private int additions;
+
+        FrequencySketch(int expectedEntries) {
+            int width = Integer.highestOneBit(Math.max(expectedEntries, 16) - 1) << 1;
+            this.counters = new byte[DEPTH][width];
+            this.mask = width - 1;
+            this.sampleSize = 10 * width;
+        }
+
+        void increment(String hash) {
+            int h = hash.hashCode();
+            for (int i = 0; i < DEPTH; i++) {
+                int slot = slot(h, i);
+                if (counters[i][slot] < MAX_COUNT) {
+                    counters[i][slot]++;
+                }
+            }
+
+            if (++additions >= sampleSize) {
+                for (byte[] row : counters) {
+                    for (int j = 0; j < row.length; j++) {
+                        row[j] >>= 1;
+                    }
+                }
+                additions /= 2;
+            }
+        }
+
+        int frequency(String hash) {
+            int h = hash.hashCode();
+            int frequency = MAX_COUNT;
+            for (int i = 0; i < DEPTH; i++) {
+                frequency = Math.min(frequency, counters[i][slot(h, i)]);
+            }
+            return frequency;
+        }
+
+        private int slot(int h, int i) {
+            h *= SEEDS[i];
+            h ^= h >>> 16;
+            return h & mask;
+        }
+    }
+}
@@ -0,0 +1,177 @@
+package surfstore;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+import io.grpc.ManagedChannel;
+import io.grpc.ManagedChannelBuilder;
+import surfstore.SurfStoreBasic.Block;
+
+/*
+ * The client's view of the block servers. ConfigReader.getBlockServersFor
+ * says which servers keep copies of a block. Uploads store every copy, and
+ * downloads ask the first server of each block, then the next copy for blocks
+ * it doesn't have or couldn't send, as soon as that server's transfer ends.
+ * Every server has its own BlockTransfer, so transfers to different servers
+ * run side by side.
+ */
+class BlockCluster {
+    private final ConfigReader config;
+    // transfers[i] moves blocks to and from block server i + 1
+    private final ManagedChannel[] channels;
+    private final BlockTransfer[] transfers;
+    // How many blocks can be on the way from all servers at once
+    private final int blocksInFlight;
+
+    BlockCluster(ConfigReader config, int window, int batchSize) {
+        this.config = config;
+        this.channels = new ManagedChannel[config.getNumBlockServers()];
+        this.transfers = new BlockTransfer[config.getNumBlockServers()];
+        for (int i = 0; i < channels.length; i++) {
+            channels[i] = ManagedChannelBuilder.forAddress("127.0.0.1", config.getBlockPort(i + 1))
+                    .usePlaintext(true).build();
+            transfers[i] = new BlockTransfer(BlockStoreGrpc.newStub(channels[i]), window, batchSize);
+        }
+        this.blocksInFlight = window * batchSize * transfers.length;
+    }
+
+    void shutdown() throws InterruptedException {
+        for (BlockTransfer transfer : transfers) {
+            transfer.shutdown();
+        }
+        for (ManagedChannel channel : channels) {
+            channel.shutdown().awaitTermination(5, TimeUnit.SECONDS);
+        }
+    }
+
+    // Completes once every copy of every block is stored
+    CompletableFuture<Void> storeBlocks(List<String> hashes, Function<String, Block> loader) {
+        List<List<String>> byServer = newLists();
+        for (String hash : hashes) {
+            for (int server : config.getBlockServersFor(hash)) {
+                byServer.get(server - 1).add(hash);
+            }
+        }
+
+        List<CompletableFuture<Void>> calls = new ArrayList<>();
+        for (int i = 0; i < transfers.length; i++) {
+            if (!byServer.get(i).isEmpty()) {
+                calls.add(transfers[i].storeBlocks(byServer.get(i), loader));
+            }
+        }
+        return CompletableFuture.allOf(calls.toArray(new CompletableFuture<?>[0]));
+    }
+
+    // Calls consumer once per requested hash as blocks arrive, possibly from several threads at
+    // once. A block no copy could be found of is passed with an empty hash. Each server asks gate
+    // before requesting a batch. The result fails as soon as consumer throws or a block can't be
+    // fetched from any copy, without waiting for the other servers.
+    CompletableFuture<Void> getBlocks(List<String> hashes, BlockTransfer.Gate gate,
+                                      BiConsumer<String, Block> consumer) {
+        CompletableFuture<Void> result = new CompletableFuture<>();
+        getBlocks(hashes, gate, consumer, 0, ConcurrentHashMap.newKeySet(), result).whenComplete((v, t) -> {
+            if (t != null) {
+                result.completeExceptionally(t);
+            } else {
+                result.complete(null);
+            }
+        });
+        return result;
+    }
+
+    private CompletableFuture<Void> getBlocks(List<String> hashes, BlockTransfer.Gate gate,
+                                              BiConsumer<String, Block> consumer, int copy, Set<String> delivered,
+                                              CompletableFuture<Void> failed) {
+        List<List<String>> byServer = newLists();
+        for (String hash : hashes) {
+            byServer.get(config.getBlockServersFor(hash).get(copy) - 1).add(hash);
+        }
+
+        List<CompletableFuture<Void>> calls = new ArrayList<>();
+        for (int i = 0; i < transfers.length; i++) {
+            if (!byServer.get(i).isEmpty()) {
+                calls.add(getBlocks(i, byServer.get(i), gate, consumer, copy, delivered, failed));
+            }
+        }
+        return CompletableFuture.allOf(calls.toArray(new CompletableFuture<?>[0]));
+    }
+
+    // Blocks server i doesn't have or didn't get to are asked from the next copy as soon as its
+    // transfer ends, not once every server is done. Otherwise the writer would have to hold on to
+    // everything the other servers send while it waits for the blocks of a server that is down.
+    // Failures that end the download complete failed.
+    private CompletableFuture<Void> getBlocks(int i, List<String> hashes, BlockTransfer.Gate gate,
+                                              BiConsumer<String, Block> consumer, int copy, Set<String> delivered,
+                                              CompletableFuture<Void> failed) {
+        boolean lastCopy = copy + 1 >= config.getNumBlockReplicas();
+        Set<String> missing = ConcurrentHashMap.newKeySet();
+        CompletableFuture<Void> call = transfers[i].getBlocks(hashes, gate, (hash, block) -> {
+            if (block.getHash().isEmpty() && !lastCopy) {
+                missing.add(hash);
+            } else if (delivered.add(hash)) {
+                // A hash only counts as delivered once the consumer took it
+                try {
+                    consumer.accept(hash, block);
+                } catch (RuntimeException e) {
+                    delivered.remove(hash);
+                    failed.completeExceptionally(e);
+                    throw e;
+                }
+            }
+        });
+        if (lastCopy) {
+            call.whenComplete((v, t) -> {
+                if (t != null) {
+                    failed.completeExceptionally(t);
+                }
+            });
+            return call;
+        }
+
+        CompletableFuture<Void> result = new CompletableFuture<>();
+        call.whenComplete((v, t) -> {
+            // Nothing more is asked for once the download failed
+            if (failed.isDone()) {
+                result.cancel(false);
+                return;
+            }
+
+            List<String> retry = new ArrayList<>();
+            for (String hash : hashes) {
+                if (missing.contains(hash) || t != null && !delivered.contains(hash)) {
+                    retry.add(hash);
+                }
+            }
+            if (retry.isEmpty()) {
+                result.complete(null);
+                return;
+            }
+            getBlocks(retry, gate, consumer, copy + 1, delivered, failed).whenComplete((v2, t2) -> {
+                if (t2 != null) {
+                    result.completeExceptionally(t2);
+                } else {
+                    result.complete(null);
+                }
+            });
+        });
+        return result;
+    }
+
+    int blocksInFlight() {
+        return blocksInFlight;
+    }
+
+    private List<List<String>> newLists() {
+        List<List<String>> lists = new ArrayList<>(transfers.length);
+        for (int i = 0; i < transfers.length; i++) {
+            lists.add(new ArrayList<>());
+        }
+        return lists;
+    }
+}
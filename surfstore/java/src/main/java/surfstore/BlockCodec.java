@@ -0,0 +1,131 @@
+package surfstore;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.UnsafeByteOperations;
+import surfstore.SurfStoreBasic.Block;
+
+/*
+ * Compression of single blocks. Clients deflate the blocks they upload at the
+ * fastest level and set compressed, unless that saves less than 1/MIN_SAVING
+ * of the block, in which case it is sent as it is. The hash is always of the
+ * uncompressed data, so it doesn't matter for deduplication how a block was
+ * sent. Block servers keep blocks the way they got them and only inflate
+ * them for clients that didn't ask for compressed blocks.
+ */
+class BlockCodec {
+    private static final int MIN_SAVING = 8;
+    // Inflated blocks can't be larger than the largest block a segment takes
+    private static final int MAX_BLOCK_SIZE = 64 * 1024 * 1024;
+
+    private static final ThreadLocal<Deflater> DEFLATER =
+            ThreadLocal.withInitial(() -> new Deflater(Deflater.BEST_SPEED));
+    private static final ThreadLocal<Inflater> INFLATER = ThreadLocal.withInitial(Inflater::new);
+    // Per thread scratch space the deflater reads from and writes to
+    private static final ThreadLocal<byte[][]> SCRATCH = ThreadLocal.withInitial(() -> new byte[2][0]);
+
+    // Block of the remaining bytes of chunk, compressed if that pays off. Doesn't move the
+    // position of chunk.
+    static Block compress(String hash, ByteBuffer chunk) {
+        int length = chunk.remaining();
+        byte[][] scratch = SCRATCH.get();
+        // data() only grows the input buffer, so each is sized on its own
+        if (scratch[0].length < length) {
+            scratch[0] = new byte[length];
+        }
+        if (scratch[1].length < length) {
+            scratch[1] = new byte[length];
+        }
+        chunk.duplicate().get(scratch[0], 0, length);
+
+        // Data whose bytes are spread too evenly to save enough even when entropy coded, like
+        // data that is already compressed or encrypted, isn't worth a deflate
+        int limit = length - length / MIN_SAVING;
+        Deflater deflater = DEFLATER.get();
+        deflater.reset();
+        int compressedLength = limit;
+        if (entropyBits(scratch[0], length) / 8 < limit) {
+            deflater.setInput(scratch[0], 0, length);
+            deflater.finish();
+            compressedLength = deflater.deflate(scratch[1], 0, limit);
+        }
+
+        Block.Builder builder = Block.newBuilder().setHash(hash);
+        if (deflater.finished() && compressedLength < limit) {
+            builder.setData(ByteString.copyFrom(scratch[1], 0, compressedLength)).setCompressed(true);
+        } else {
+            builder.setData(ByteString.copyFrom(scratch[0], 0, length));
+        }
+        return builder.build();
+    }
+
+    // Bits needed to code the first length bytes of data by how often each byte value occurs
+    private static double entropyBits(byte[] data, int length) {
+        int[] counts = new int[256];
+        for (int i = 0; i < length; i++) {
+            counts[data[i] & 0xff]++;
+        }
+
+        double bits = 0;
+        for (int count : counts) {
+            if (count > 0) {
+                bits -= count * Math.log((double) count / length);
+            }
+        }
+        return bits / Math.log(2);
+    }
+
+    // The uncompressed data of a block
+    static ByteString data(Block block) throws IOException {
+        if (!block.getCompressed()) {
+            return block.getData();
+        }
+
+        ByteString data = block.getData();
+        byte[][] scratch = SCRATCH.get();
+        if (scratch[0].length < data.size()) {
+            scratch[0] = new byte[data.size()];
+        }
+        data.copyTo(scratch[0], 0);
+
+        Inflater inflater = INFLATER.get();
+        inflater.reset();
+        inflater.setInput(scratch[0], 0, data.size());
+        byte[] out = new byte[Math.max(4 * data.size(), 4096)];
+        int length = 0;
+        try {
+            while (!inflater.finished()) {
+                if (length == out.length) {
+                    if (out.length >= MAX_BLOCK_SIZE) {
+                        throw new IOException("Block " + block.getHash() + " inflates past " + MAX_BLOCK_SIZE + " bytes");
+                    }
+                    byte[] larger = new byte[Math.min(2 * out.length, MAX_BLOCK_SIZE)];
+                    System.arraycopy(out, 0, larger, 0, length);
+                    out = larger;
+                }
+                int n = inflater.inflate(out, length, out.length - length);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IOException("Block " + block.getHash() + " is truncated");
+                }
+                length += n;
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Block " + block.getHash() + " is corrupted: " + e.getMessage());
+        }
+
+        return UnsafeByteOperations.unsafeWrap(out, 0, length);
+    }
+
+    // The block with its data uncompressed
+    static Block uncompressed(Block block) throws IOException {
+        if (!block.getCompressed()) {
+            return block;
+        }
+        return Block.newBuilder().setHash(block.getHash()).setData(data(block)).build();
+    }
+}
@@ -0,0 +1,168 @@
+package surfstore;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * Writes a file from its blocklist while blocks arrive in any order.
+ * Block i can be written as soon as the sizes of blocks 0..i-1 are known;
+ * until then its data is held in memory, or for blocks that exist locally
+ * only its size and where to read it from. Remote blocks are only requested
+ * once awaitWindow lets them, less than ahead blocks past the first block not
+ * written yet, so however unevenly the block servers deliver only about that
+ * many are held. A block that appears more than once is copied from where it was first written instead of
+ * being kept around. The file is written to a temporary file and only
+ * moved over the target by commit().
+ */
+class BlockFileWriter implements Closeable {
+    private final Path target;
+    private final Path tmp;
+    private final FileChannel channel;
+
+    private final List<String> blockList;
+    private final Map<String, List<Integer>> positions;
+    private final int[] sizes;
+    private final int ahead;
+    private long resolvedOffset;
+    private int resolved;
+    private boolean closed;
+
+    private final Map<String, BlockSource> pending;
+    private final Map<String, Long> written;
+
+    interface BlockSource {
+        ByteBuffer read() throws IOException;
+    }
+
+    BlockFileWriter(Path target, List<String> blockList, int ahead) throws IOException {
+        this.target = target;
+        this.tmp = target.resolveSibling("." + target.getFileName() + ".part");
+        this.channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.READ, StandardOpenOption.TRUNCATE_EXISTING);
+
+        this.blockList = blockList;
+        this.positions = new HashMap<>();
+        for (int i = 0; i < blockList.size(); i++) {
+            positions.computeIfAbsent(blockList.get(i), k -> new ArrayList<>()).add(i);
+        }
+        this.sizes = new int[blockList.size()];
+        Arrays.fill(sizes, -1);
+        this.ahead = ahead;
+
+        this.pending = new HashMap<>();
+        this.written = new HashMap<>();
+    }
+
+    // Hand over the data of a block, the buffer must not be modified afterwards
+    void put(String hash, ByteBuffer data) throws IOException {
+        put(hash, data.remaining(), () -> data);
+    }
+
+    // Register a block of known size that is only read once it can be written
+    synchronized void put(String hash, int size, BlockSource source) throws IOException {
+        List<Integer> indices = positions.get(hash);
+        if (indices == null || written.containsKey(hash) || pending.containsKey(hash)) {
+            return;
+        }
+
+        for (int i : indices) {
+            sizes[i] = size;
+        }
+        pending.put(hash, source);
+
+        int before = resolved;
+        while (resolved < sizes.length && sizes[resolved] >= 0) {
+            writeAt(blockList.get(resolved), resolvedOffset, sizes[resolved]);
+            resolvedOffset += sizes[resolved];
+            resolved++;
+        }
+        if (resolved != before) {
+            notifyAll();
+        }
+    }
+
+    // Waits until the first place of hash in the file is less than ahead blocks past the first
+    // block not written yet. Fails once the writer is closed.
+    synchronized void awaitWindow(String hash) throws IOException, InterruptedException {
+        int first = positions.get(hash).get(0);
+        while (first >= resolved + ahead) {
+            if (closed) {
+                throw new IOException("Writer for " + target + " is closed");
+            }
+            wait();
+        }
+    }
+
+    private void writeAt(String hash, long offset, int size) throws IOException {
+        Long first = written.get(hash);
+        ByteBuffer data;
+
+        if (first == null) {
+            data = pending.remove(hash).read().duplicate();
+            if (data.remaining() != size) {
+                throw new IOException("Block " + hash + " changed size");
+            }
+            written.put(hash, offset);
+        } else {
+            data = ByteBuffer.allocate(size);
+            while (data.hasRemaining()) {
+                if (channel.read(data, first + data.position()) < 0) {
+                    throw new IOException("Short read copying repeated block");
+                }
+            }
+            data.flip();
+        }
+
+        while (data.hasRemaining()) {
+            channel.write(data, offset + size - data.remaining());
+        }
+    }
+
+    synchronized boolean isComplete() {
+        return resolved == sizes.length;
+    }
+
+    // Where each block ended up in the file, only valid once every block is written
+    synchronized List<BlockUtil.BlockRef> blockRefs() {
+        List<BlockUtil.BlockRef> refs = new ArrayList<>();
+        long offset = 0;
+
+        for (int i = 0; i < resolved; i++) {
+            refs.add(new BlockUtil.BlockRef(blockList.get(i), offset, sizes[i]));
+            offset += sizes[i];
+        }
+
+        return refs;
+    }
+
+    // Flush the file and move it over the target, fails if any block is missing
+    synchronized void commit() throws IOException {
+        if (!isComplete()) {
+            throw new IOException("Missing block " + blockList.get(resolved));
+        }
+
+        channel.truncate(resolvedOffset);
+        channel.force(false);
+        channel.close();
+        Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        closed = true;
+        notifyAll();
+        channel.close();
+        Files.deleteIfExists(tmp);
+    }
+}
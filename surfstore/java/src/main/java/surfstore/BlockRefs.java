@@ -0,0 +1,118 @@
+package surfstore;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import surfstore.SurfStoreBasic.FileInfo;
+
+/*
+ * Reference counts of block hashes over the committed files of a metadata
+ * group. A block whose count drops to zero becomes an orphan, a candidate for
+ * garbage collection, until something refers to it again. Writers pin the
+ * blocks they checked for while their write is in flight, so a block a write
+ * is about to refer to never looks unreferenced. Counting every reference
+ * rather than every block also gives the deduplication ratio.
+ */
+class BlockRefs {
+    // Deleted files keep a single "0" in their block list
+    private static final String DELETED = "0";
+
+    private final Map<String, Integer> counts = new HashMap<>();
+    private final Map<String, Integer> pins = new HashMap<>();
+    // Orphans in the order they were orphaned, with the time it happened
+    private final LinkedHashMap<String, Long> orphans = new LinkedHashMap<>();
+    private long references;
+
+    synchronized void add(List<String> blockList) {
+        for (String hash : blockList) {
+            if (!hash.equals(DELETED)) {
+                counts.merge(hash, 1, Integer::sum);
+                orphans.remove(hash);
+                references++;
+            }
+        }
+    }
+
+    synchronized void remove(List<String> blockList) {
+        long now = System.currentTimeMillis();
+        for (String hash : blockList) {
+            if (!hash.equals(DELETED) && counts.containsKey(hash)) {
+                references--;
+                if (counts.merge(hash, -1, Integer::sum) == 0) {
+                    counts.remove(hash);
+                    orphans.put(hash, now);
+                }
+            }
+        }
+    }
+
+    // Count the files from scratch, blocks that lost their last reference become orphans
+    synchronized void reset(Collection<FileInfo> files) {
+        Map<String, Integer> old = new HashMap<>(counts);
+        counts.clear();
+        references = 0;
+        for (FileInfo file : files) {
+            add(file.getBlocklistList());
+        }
+
+        long now = System.currentTimeMillis();
+        for (String hash : old.keySet()) {
+            if (!counts.containsKey(hash)) {
+                orphans.put(hash, now);
+            }
+        }
+    }
+
+    synchronized void pin(Collection<String> hashes) {
+        for (String hash : hashes) {
+            pins.merge(hash, 1, Integer::sum);
+        }
+    }
+
+    synchronized void unpin(Collection<String> hashes) {
+        for (String hash : hashes) {
+            pins.computeIfPresent(hash, (k, n) -> n == 1 ? null : n - 1);
+        }
+    }
+
+    synchronized boolean isReferenced(String hash) {
+        return counts.containsKey(hash) || pins.containsKey(hash);
+    }
+
+    // Up to max orphans that have been orphans for at least minAgeMs, oldest first. They are
+    // no longer tracked, put them back with returnOrphans to try again later.
+    synchronized List<String> takeOrphans(int max, long minAgeMs) {
+        List<String> taken = new ArrayList<>();
+        long cutoff = System.currentTimeMillis() - minAgeMs;
+        Iterator<Map.Entry<String, Long>> it = orphans.entrySet().iterator();
+        while (taken.size() < max && it.hasNext()) {
+            Map.Entry<String, Long> orphan = it.next();
+            if (orphan.getValue() > cutoff) {
+                break;
+            }
+            taken.add(orphan.getKey());
+            it.remove();
+        }
+        return taken;
+    }
+
+    synchronized void returnOrphans(Collection<String> hashes) {
+        long now = System.currentTimeMillis();
+        for (String hash : hashes) {
+            if (!counts.containsKey(hash)) {
+                orphans.put(hash, now);
+            }
+        }
+    }
+
+    synchronized String stats() {
+        double ratio = counts.isEmpty() ? 1.0 : (double) references / counts.size();
+        return String.format("%d block references to %d unique blocks, dedup ratio %.2f, %d orphans",
+                references, counts.size(), ratio, orphans.size());
+    }
+}
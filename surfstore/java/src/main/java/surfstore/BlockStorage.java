@@ -0,0 +1,28 @@
+package surfstore;
+
+import java.io.IOException;
+
+import surfstore.SurfStoreBasic.Block;
+
+// Implementations must be thread safe, BlockStoreImpl calls them without any locking. Blocks
+// are kept as the Block messages they came in, compressed or not, so they can go between gRPC
+// and storage without being copied.
+interface BlockStorage {
+
+    // Store a block, blocks are content addressed so storing an existing hash is a no-op
+    void put(Block block) throws IOException;
+
+    // Returns null if the block doesn't exist. The data may live off the heap.
+    Block get(String hash) throws IOException;
+
+    boolean contains(String hash);
+
+    // Returns once every block put so far would survive a crash. Acks of StoreBlock(s) wait for
+    // this, metadata servers commit file versions whose blocks they found on the block servers.
+    void sync() throws IOException;
+
+    // Returns false if the block doesn't exist
+    boolean delete(String hash) throws IOException;
+
+    void close() throws IOException;
+}
@@ -2,14 +2,16 @@ package surfstore;
 
 import java.io.File;
 import java.io.IOException;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
 
-import com.google.protobuf.ByteString;
 import io.grpc.Server;
 import io.grpc.ServerBuilder;
+import io.grpc.stub.ServerCallStreamObserver;
 import io.grpc.stub.StreamObserver;
 import net.sourceforge.argparse4j.ArgumentParsers;
 import net.sourceforge.argparse4j.inf.ArgumentParser;
@@ -21,16 +23,21 @@ import surfstore.SurfStoreBasic.Empty;
 public final class BlockStore {
     private static final Logger logger = Logger.getLogger(BlockStore.class.getName());
 
+    // How long running calls get to finish before storage is closed under them
+    private static final long SHUTDOWN_TIMEOUT_MS = 5000;
+
     protected Server server;
 	protected ConfigReader config;
+    protected BlockStorage storage;
 
     public BlockStore(ConfigReader config) {
     	this.config = config;
 	}
 
-	private void start(int port, int numThreads) throws IOException {
+	private void start(int port, int numThreads, BlockStorage storage) throws IOException {
+        this.storage = storage;
         server = ServerBuilder.forPort(port)
-                .addService(new BlockStoreImpl())
+                .addService(new BlockStoreImpl(storage))
                 .executor(Executors.newFixedThreadPool(numThreads))
                 .build()
                 .start();
@@ -48,6 +55,22 @@ public final class BlockStore {
     private void stop() {
         if (server != null) {
             server.shutdown();
+            try {
+                if (!server.awaitTermination(SHUTDOWN_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                    logger.warning("Calls still running at shutdown, cancelling them");
+                    server.shutdownNow();
+                    server.awaitTermination(SHUTDOWN_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (storage != null) {
+            try {
+                storage.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
         }
     }
 
@@ -62,8 +85,16 @@ public final class BlockStore {
                 .description("BlockStore server for SurfStore");
         parser.addArgument("config_file").type(String.class)
                 .help("Path to configuration file");
+        parser.addArgument("-n", "--number").type(Integer.class).setDefault(1)
+                .help("Set which number this block server is");
         parser.addArgument("-t", "--threads").type(Integer.class).setDefault(10)
                 .help("Maximum number of concurrent threads");
+        parser.addArgument("-d", "--data_dir").type(String.class)
+                .help("Directory for persistent block segments, blocks are kept in memory if not set");
+        parser.addArgument("--cache_mb").type(Integer.class).setDefault(64)
+                .help("Memory budget in MB for caching blocks read from disk");
+        parser.addArgument("--segment_mb").type(Integer.class).setDefault(64)
+                .help("Size in MB at which a segment file is sealed");
 
         Namespace res = null;
         try {
@@ -82,17 +113,65 @@ public final class BlockStore {
         
         File configf = new File(c_args.getString("config_file"));
         ConfigReader config = new ConfigReader(configf);
+        int servNum = c_args.getInt("number");
+
+        if (servNum < 1 || servNum > config.getNumBlockServers()) {
+            throw new RuntimeException(String.format("block%d not in config file", servNum));
+        }
+
+        BlockStorage storage;
+        if (c_args.getString("data_dir") != null) {
+            storage = new SegmentBlockStorage(new File(c_args.getString("data_dir")),
+                    c_args.getInt("segment_mb") * 1024L * 1024L, c_args.getInt("cache_mb") * 1024L * 1024L);
+        } else {
+            storage = new MemoryBlockStorage();
+        }
 
         final BlockStore server = new BlockStore(config);
-        server.start(config.getBlockPort(), c_args.getInt("threads"));
+        server.start(config.getBlockPort(servNum), c_args.getInt("threads"), storage);
         server.blockUntilShutdown();
     }
 
     static class BlockStoreImpl extends BlockStoreGrpc.BlockStoreImplBase {
-        private Map<String, byte[]> blockMap;
+        private static final int BLOCK_LOCK_STRIPES = 64;
+
+        private BlockStorage storage;
+
+        // Blocks the metadata servers are about to delete. HasBlocks reports them missing, which
+        // is what keeps a write from committing a block that is deleted under it: the write's
+        // check has the client store the block again. Storing a condemned block takes it off
+        // again under the stripe lock DeleteBlocks holds, so that copy isn't deleted.
+        private Set<String> condemned;
+        private Object[] blockLocks;
+
+        BlockStoreImpl(BlockStorage storage) {
+            this.storage = storage;
+            this.condemned = ConcurrentHashMap.newKeySet();
+            this.blockLocks = new Object[BLOCK_LOCK_STRIPES];
+            for (int i = 0; i < blockLocks.length; i++) {
+                blockLocks[i] = new Object();
+            }
+        }
+
+        private Object blockLock(String hash) {
+            return blockLocks[(hash.hashCode() & 0x7fffffff) % blockLocks.length];
+        }
+
+        // A store that skips the lock because nothing is condemned can still lose its block to
+        // a condemn right after the check, the writer's HasBlocks then finds it missing
+        private void put(SurfStoreBasic.Block block) throws IOException {
+            if (condemned.isEmpty()) {
+                storage.put(block);
+                return;
+            }
+            synchronized (blockLock(block.getHash())) {
+                condemned.remove(block.getHash());
+                storage.put(block);
+            }
+        }
 
-        BlockStoreImpl() {
-            this.blockMap = new HashMap<>();
+        private boolean contains(String hash) {
+            return storage.contains(hash) && !condemned.contains(hash);
         }
 
         @Override
@@ -104,24 +183,76 @@ public final class BlockStore {
 
         @Override
         public void storeBlock(SurfStoreBasic.Block request, StreamObserver<Empty> responseObserver) {
-            synchronized (this) {
-                blockMap.put(request.getHash(), request.getData().toByteArray());
+            try {
+                put(request);
+                storage.sync();
+            } catch (IOException e) {
+                e.printStackTrace();
+                responseObserver.onError(e);
+                return;
             }
             Empty response = Empty.newBuilder().build();
             responseObserver.onNext(response);
             responseObserver.onCompleted();
         }
 
+        @Override
+        public StreamObserver<SurfStoreBasic.Block> storeBlocks(StreamObserver<Empty> responseObserver) {
+            return new StreamObserver<SurfStoreBasic.Block>() {
+                private boolean failed;
+
+                @Override
+                public void onNext(SurfStoreBasic.Block block) {
+                    if (failed) {
+                        return;
+                    }
+                    try {
+                        put(block);
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                        failed = true;
+                        responseObserver.onError(e);
+                    }
+                }
+
+                @Override
+                public void onError(Throwable t) {
+                    logger.warning("StoreBlocks cancelled: " + t);
+                }
+
+                // The blocks are only acked once they are on disk
+                @Override
+                public void onCompleted() {
+                    if (failed) {
+                        return;
+                    }
+                    try {
+                        storage.sync();
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                        responseObserver.onError(e);
+                        return;
+                    }
+                    responseObserver.onNext(Empty.newBuilder().build());
+                    responseObserver.onCompleted();
+                }
+            };
+        }
+
         @Override
         public void getBlock(SurfStoreBasic.Block request, StreamObserver<SurfStoreBasic.Block> responseObserver) {
             SurfStoreBasic.Block.Builder builder = SurfStoreBasic.Block.newBuilder();
             builder.setHash(request.getHash());
 
-            synchronized (this) {
-                byte[] data = blockMap.get(request.getHash());
-                if (data != null) {
-                    builder.setData(ByteString.copyFrom(data));
+            try {
+                SurfStoreBasic.Block block = storage.get(request.getHash());
+                if (block != null) {
+                    builder.setData(BlockCodec.data(block));
                 }
+            } catch (IOException e) {
+                e.printStackTrace();
+                responseObserver.onError(e);
+                return;
             }
 
             SurfStoreBasic.Block response = builder.build();
@@ -129,18 +260,123 @@ public final class BlockStore {
             responseObserver.onCompleted();
         }
 
+        @Override
+        public void getBlocks(SurfStoreBasic.HashList request, StreamObserver<SurfStoreBasic.Block> responseObserver) {
+            ServerCallStreamObserver<SurfStoreBasic.Block> serverObserver =
+                    (ServerCallStreamObserver<SurfStoreBasic.Block>) responseObserver;
+            BlockStreamer streamer = new BlockStreamer(request.getHashesList().iterator(), request.getAcceptCompressed(),
+                    serverObserver);
+
+            serverObserver.setOnReadyHandler(streamer::drain);
+            serverObserver.setOnCancelHandler(() -> logger.warning("GetBlocks cancelled by client"));
+            streamer.drain();
+        }
+
+        // Only reads the next block from storage when the transport can take it,
+        // so a slow client doesn't make the server buffer the whole list
+        private class BlockStreamer {
+            private final Iterator<String> hashes;
+            private final boolean acceptCompressed;
+            private final ServerCallStreamObserver<SurfStoreBasic.Block> observer;
+            private boolean done;
+
+            BlockStreamer(Iterator<String> hashes, boolean acceptCompressed,
+                          ServerCallStreamObserver<SurfStoreBasic.Block> observer) {
+                this.hashes = hashes;
+                this.acceptCompressed = acceptCompressed;
+                this.observer = observer;
+            }
+
+            synchronized void drain() {
+                while (!done && !observer.isCancelled() && observer.isReady()) {
+                    if (!hashes.hasNext()) {
+                        done = true;
+                        observer.onCompleted();
+                        return;
+                    }
+
+                    String hash = hashes.next();
+                    SurfStoreBasic.Block block;
+                    try {
+                        block = storage.get(hash);
+                        if (block == null) {
+                            block = SurfStoreBasic.Block.getDefaultInstance();
+                        } else if (!acceptCompressed) {
+                            block = BlockCodec.uncompressed(block);
+                        }
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                        done = true;
+                        observer.onError(e);
+                        return;
+                    }
+                    observer.onNext(block);
+                }
+            }
+        }
+
         @Override
         public void hasBlock(SurfStoreBasic.Block request, StreamObserver<SurfStoreBasic.SimpleAnswer> responseObserver) {
             SurfStoreBasic.SimpleAnswer.Builder builder = SurfStoreBasic.SimpleAnswer.newBuilder();
 
-            synchronized (this) {
-                boolean answer = blockMap.containsKey(request.getHash());
-                builder.setAnswer(answer);
-            }
+            boolean answer = contains(request.getHash());
+            builder.setAnswer(answer);
 
             SurfStoreBasic.SimpleAnswer response = builder.build();
             responseObserver.onNext(response);
             responseObserver.onCompleted();
         }
+
+        @Override
+        public void hasBlocks(SurfStoreBasic.HashList request, StreamObserver<SurfStoreBasic.HashList> responseObserver) {
+            SurfStoreBasic.HashList.Builder builder = SurfStoreBasic.HashList.newBuilder();
+
+            for (String hash : request.getHashesList()) {
+                if (!contains(hash)) {
+                    builder.addHashes(hash);
+                }
+            }
+
+            SurfStoreBasic.HashList response = builder.build();
+            responseObserver.onNext(response);
+            responseObserver.onCompleted();
+        }
+
+        @Override
+        public void condemnBlocks(SurfStoreBasic.HashList request, StreamObserver<Empty> responseObserver) {
+            condemned.addAll(request.getHashesList());
+            responseObserver.onNext(Empty.newBuilder().build());
+            responseObserver.onCompleted();
+        }
+
+        @Override
+        public void releaseBlocks(SurfStoreBasic.HashList request, StreamObserver<Empty> responseObserver) {
+            condemned.removeAll(request.getHashesList());
+            responseObserver.onNext(Empty.newBuilder().build());
+            responseObserver.onCompleted();
+        }
+
+        @Override
+        public void deleteBlocks(SurfStoreBasic.HashList request, StreamObserver<SurfStoreBasic.HashList> responseObserver) {
+            SurfStoreBasic.HashList.Builder builder = SurfStoreBasic.HashList.newBuilder();
+
+            try {
+                for (String hash : request.getHashesList()) {
+                    synchronized (blockLock(hash)) {
+                        if (condemned.remove(hash) && storage.delete(hash)) {
+                            builder.addHashes(hash);
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+                responseObserver.onError(e);
+                return;
+            }
+
+            SurfStoreBasic.HashList response = builder.build();
+            responseObserver.onNext(response);
+            responseObserver.onCompleted();
+        }
     }
 }
\ No newline at end of file
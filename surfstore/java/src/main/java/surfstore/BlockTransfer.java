@@ -0,0 +1,187 @@
+package surfstore;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+import io.grpc.Status;
+import io.grpc.stub.ClientCallStreamObserver;
+import io.grpc.stub.ClientResponseObserver;
+import io.grpc.stub.StreamObserver;
+import surfstore.SurfStoreBasic.Block;
+import surfstore.SurfStoreBasic.Empty;
+import surfstore.SurfStoreBasic.HashList;
+
+/*
+ * Moves blocks between the client and the BlockStore over async stubs.
+ * The hash list is cut into batches of batchSize blocks, each batch is one
+ * StoreBlocks/GetBlocks stream, and at most window batches are in flight at
+ * once. Blocks of the next batch are loaded while earlier batches are still
+ * on the wire, and downloaded blocks are handed to the caller as they arrive.
+ * A download asks its Gate before requesting each batch, so the caller can
+ * hold back batches it has no room for yet.
+ */
+class BlockTransfer {
+    private final BlockStoreGrpc.BlockStoreStub stub;
+    private final int window;
+    private final int batchSize;
+    private final ExecutorService issuer;
+
+    BlockTransfer(BlockStoreGrpc.BlockStoreStub stub, int window, int batchSize) {
+        this.stub = stub;
+        this.window = window;
+        this.batchSize = batchSize;
+        this.issuer = Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, "block-transfer");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    // Waits until the batch starting with hash may be requested
+    interface Gate {
+        void await(String hash) throws IOException, InterruptedException;
+    }
+
+    private static final Gate OPEN = hash -> { };
+
+    void shutdown() {
+        issuer.shutdownNow();
+    }
+
+    // Completes once every block is stored, loader is called on the issuing thread
+    CompletableFuture<Void> storeBlocks(List<String> hashes, Function<String, Block> loader) {
+        return run(hashes, OPEN, (batch, done) -> {
+            List<Block> blocks = new ArrayList<>(batch.size());
+            for (String hash : batch) {
+                blocks.add(loader.apply(hash));
+            }
+
+            stub.storeBlocks(new ClientResponseObserver<Block, Empty>() {
+                @Override
+                public void beforeStart(ClientCallStreamObserver<Block> requestStream) {
+                    Iterator<Block> it = blocks.iterator();
+                    boolean[] completed = {false};
+
+                    // onReady can fire again after the last block, only half-close once
+                    requestStream.setOnReadyHandler(() -> {
+                        while (!completed[0] && requestStream.isReady()) {
+                            if (it.hasNext()) {
+                                requestStream.onNext(it.next());
+                            } else {
+                                completed[0] = true;
+                                requestStream.onCompleted();
+                            }
+                        }
+                    });
+                }
+
+                @Override
+                public void onNext(Empty value) {
+                }
+
+                @Override
+                public void onError(Throwable t) {
+                    done.completeExceptionally(t);
+                }
+
+                @Override
+                public void onCompleted() {
+                    done.complete(null);
+                }
+            });
+        });
+    }
+
+    // Calls consumer with (requested hash, block) as blocks arrive, possibly from several
+    // threads at once. A missing block is passed with an empty hash. Blocks may come back
+    // compressed, BlockCodec.data gives their data.
+    CompletableFuture<Void> getBlocks(List<String> hashes, Gate gate, BiConsumer<String, Block> consumer) {
+        return run(hashes, gate, (batch, done) -> {
+            HashList request = HashList.newBuilder().addAllHashes(batch).setAcceptCompressed(true).build();
+
+            stub.getBlocks(request, new StreamObserver<Block>() {
+                private int received;
+
+                @Override
+                public void onNext(Block block) {
+                    if (done.isDone()) {
+                        return;
+                    }
+                    try {
+                        consumer.accept(batch.get(received++), block);
+                    } catch (RuntimeException e) {
+                        done.completeExceptionally(e);
+                    }
+                }
+
+                @Override
+                public void onError(Throwable t) {
+                    done.completeExceptionally(t);
+                }
+
+                @Override
+                public void onCompleted() {
+                    if (received != batch.size()) {
+                        done.completeExceptionally(Status.DATA_LOSS
+                                .withDescription("GetBlocks returned " + received + " of " + batch.size() + " blocks")
+                                .asRuntimeException());
+                    } else {
+                        done.complete(null);
+                    }
+                }
+            });
+        });
+    }
+
+    private interface BatchCall {
+        void start(List<String> batch, CompletableFuture<Void> done);
+    }
+
+    private CompletableFuture<Void> run(List<String> hashes, Gate gate, BatchCall call) {
+        CompletableFuture<Void> result = new CompletableFuture<>();
+
+        issuer.execute(() -> {
+            Semaphore inFlight = new Semaphore(window);
+            List<CompletableFuture<Void>> batches = new ArrayList<>();
+
+            try {
+                for (int i = 0; i < hashes.size() && !result.isDone(); i += batchSize) {
+                    List<String> batch = hashes.subList(i, Math.min(i + batchSize, hashes.size()));
+                    gate.await(batch.get(0));
+                    CompletableFuture<Void> done = new CompletableFuture<>();
+                    done.whenComplete((v, t) -> {
+                        inFlight.release();
+                        if (t != null) {
+                            result.completeExceptionally(t);
+                        }
+                    });
+
+                    inFlight.acquire();
+                    batches.add(done);
+                    call.start(batch, done);
+                }
+            } catch (Throwable t) {
+                result.completeExceptionally(t);
+                return;
+            }
+
+            CompletableFuture.allOf(batches.toArray(new CompletableFuture<?>[0])).whenComplete((v, t) -> {
+                if (t != null) {
+                    result.completeExceptionally(t);
+                } else {
+                    result.complete(null);
+                }
+            });
+        });
+
+        return result;
+    }
+}
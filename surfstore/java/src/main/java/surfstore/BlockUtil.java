@@ -1,99 +1,148 @@
 package surfstore;
 
 import java.io.*;
-import java.nio.charset.StandardCharsets;
-import java.nio.file.Paths;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+import java.util.logging.Logger;
+
+import com.google.protobuf.ByteString;
+import surfstore.SurfStoreBasic.Block;
 
 public class BlockUtil {
 
-    private static final int BLOCKSIZE = 4 * 1024;
+    static final int BLOCKSIZE = 4 * 1024;
+
+    private static final Logger logger = Logger.getLogger(BlockUtil.class.getName());
 
-    static String sha256(String s) {
-        MessageDigest digest;
+    // Regions of a file that are hashed as separate tasks when the chunker allows it
+    private static final long SCAN_REGION = 64 * 1024 * 1024;
+    private static final ForkJoinPool SCAN_POOL = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
 
+    // Reused per thread so hashing a block doesn't allocate a new digest
+    private static final ThreadLocal<MessageDigest> DIGEST = ThreadLocal.withInitial(() -> {
         try {
-            digest = MessageDigest.getInstance("SHA-256");
+            return MessageDigest.getInstance("SHA-256");
         } catch (NoSuchAlgorithmException e) {
             e.printStackTrace();
             throw new RuntimeException("No such hash algorithm");
         }
+    });
+
+    interface ChunkConsumer {
+        void accept(long offset, ByteBuffer chunk) throws IOException;
+    }
 
-        byte[] hash = digest.digest(s.getBytes(StandardCharsets.UTF_8));
-        String encoded = Base64.getEncoder().encodeToString(hash);
+    // Location of a block inside a local file
+    static final class BlockRef {
+        final String hash;
+        final long offset;
+        final int length;
 
-        return encoded;
+        BlockRef(String hash, long offset, int length) {
+            this.hash = hash;
+            this.offset = offset;
+            this.length = length;
+        }
     }
 
-    static List<String> readBlocksFromFile(String filepath) {
-        List<String> blocks = new ArrayList<>();
+    // Hash the remaining bytes of buf without moving its position
+    static String sha256(ByteBuffer buf) {
+        MessageDigest digest = DIGEST.get();
+        int pos = buf.position();
 
-        try (FileInputStream fis = new FileInputStream(filepath)) {
-            byte[] buf = new byte[BLOCKSIZE];
-            int size;
+        digest.update(buf);
+        buf.position(pos);
+        byte[] hash = digest.digest();
 
-            while ((size = fis.read(buf)) != -1) {
-                blocks.add(new String(buf, 0, size, StandardCharsets.UTF_8));
-                buf = new byte[BLOCKSIZE];
-            }
-        } catch (FileNotFoundException e) {
-            return null;
-        } catch (IOException e) {
-            e.printStackTrace();
-           return null;
-        }
+        return Base64.getEncoder().encodeToString(hash);
+    }
 
-        return blocks;
+    static Block toBlock(String hash, ByteBuffer chunk) {
+        return Block.newBuilder().setHash(hash).setData(ByteString.copyFrom(chunk)).build();
     }
 
-    static Map<String, byte[]> scanBlocksInDir(String dir) {
-        File dirFile = new File(dir);
-        File[] files = dirFile.listFiles(File::isFile);
+    // Cut the file into blocks and hash them, block data stays in the file
+    static List<BlockRef> readBlocksFromFile(MappedBlockFile file, Chunker chunker) throws IOException {
+        List<BlockRef> blocks = new ArrayList<>();
+        file.forEachChunk(chunker, (offset, chunk) -> blocks.add(new BlockRef(sha256(chunk), offset, chunk.remaining())));
+        return blocks;
+    }
 
-        if (files == null) {
-            return null;
-        }
+    // Block lists of the given files by file name. Files are hashed in parallel and
+    // large files are split into regions when the cut points allow it. Files that
+    // vanish or can't be read during the scan are left out.
+    static Map<String, List<BlockRef>> scanBlocksInFiles(List<File> files, Chunker chunker) {
+        Map<String, List<BlockRef>> fileBlocks = new ConcurrentHashMap<>();
+        List<ForkJoinTask<?>> tasks = new ArrayList<>();
 
-        Map<String, byte[]> hashBlockMap = new HashMap<>();
         for (File file : files) {
-            try (FileInputStream fis = new FileInputStream(file)) {
-                byte[] buf = new byte[BLOCKSIZE];
-                int size;
-
-                while ((size = fis.read(buf)) != -1) {
-                    String block = new String(buf, 0, size, StandardCharsets.UTF_8);
-                    buf = size < BLOCKSIZE ? Arrays.copyOfRange(buf, 0, size) : buf;
-                    hashBlockMap.put(sha256(block), buf);
-                    buf = new byte[BLOCKSIZE];
+            tasks.add(SCAN_POOL.submit(() -> {
+                try {
+                    long size = Files.size(file.toPath());
+                    fileBlocks.put(file.getName(), new ScanTask(file, chunker, 0, size).invoke());
+                } catch (NoSuchFileException e) {
+                    // Deleted since the directory was listed
+                } catch (IOException | UncheckedIOException e) {
+                    logger.warning("Skipping " + file + ": " + e.getMessage());
                 }
-            } catch (FileNotFoundException e) {
-                return null;
-            } catch (IOException e) {
-                e.printStackTrace();
-                return null;
-            }
+            }));
+        }
+
+        for (ForkJoinTask<?> task : tasks) {
+            task.join();
         }
 
-        return hashBlockMap;
+        return fileBlocks;
     }
 
-    static boolean writeBlocksToFile(String filename, String dir, List<byte[]> blocks) {
-        File writeFile = Paths.get(dir, filename).toFile();
+    private static final class ScanTask extends RecursiveTask<List<BlockRef>> {
+        private static final long serialVersionUID = 1L;
 
-        try (FileOutputStream fos = new FileOutputStream(writeFile)) {
-            for (byte[] block : blocks) {
-                fos.write(block);
-            }
-        } catch (FileNotFoundException e) {
-            return false;
-        } catch (IOException e) {
-            e.printStackTrace();
-            return false;
+        private final File file;
+        private final Chunker chunker;
+        private final long start;
+        private final long end;
+
+        ScanTask(File file, Chunker chunker, long start, long end) {
+            this.file = file;
+            this.chunker = chunker;
+            this.start = start;
+            this.end = end;
         }
 
-        return true;
+        @Override
+        protected List<BlockRef> compute() {
+            long region = SCAN_REGION - SCAN_REGION % chunker.maxChunkSize();
+            if (chunker.isFixed() && end - start > region) {
+                long mid = start + (end - start) / 2;
+                mid -= mid % chunker.maxChunkSize();
+
+                ScanTask left = new ScanTask(file, chunker, start, mid);
+                left.fork();
+                List<BlockRef> blocks = new ScanTask(file, chunker, mid, end).compute();
+                List<BlockRef> leftBlocks = left.join();
+                leftBlocks.addAll(blocks);
+                return leftBlocks;
+            }
+
+            // Every region maps the file on its own, so regions don't fight over one window
+            List<BlockRef> blocks = new ArrayList<>();
+            try (MappedBlockFile mapped = new MappedBlockFile(file.toPath())) {
+                mapped.forEachChunk(chunker, start, end,
+                        (offset, chunk) -> blocks.add(new BlockRef(sha256(chunk), offset, chunk.remaining())));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return blocks;
+        }
     }
 
     public static void main(String[] args) {
@@ -0,0 +1,86 @@
+package surfstore;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+/*
+ * Decides where a file is cut into blocks. Fixed size chunking cuts every
+ * maxSize bytes. Content defined chunking runs a Gear rolling hash over the
+ * data and cuts where the top bits of the hash are zero, so an insert or
+ * delete only changes the chunks around the edit and the cut points after
+ * it realign with the old ones.
+ */
+class Chunker {
+    // The table has to be identical on every client, so it comes from a fixed seed
+    private static final long[] GEAR = new long[256];
+
+    static {
+        Random random = new Random(0x5375726653746fL);
+        for (int i = 0; i < GEAR.length; i++) {
+            GEAR[i] = random.nextLong();
+        }
+    }
+
+    private final boolean contentDefined;
+    private final int minSize;
+    private final int maxSize;
+    private final long mask;
+
+    private Chunker(boolean contentDefined, int minSize, int avgSize, int maxSize) {
+        this.contentDefined = contentDefined;
+        this.minSize = minSize;
+        this.maxSize = maxSize;
+
+        // Cut with probability 1/(avgSize - minSize) per byte past minSize, rounded down
+        // to a power of two, so chunks come out around avgSize on average
+        int bits = 31 - Integer.numberOfLeadingZeros(Math.max(1, avgSize - minSize));
+        this.mask = bits == 0 ? 0 : -1L << (64 - bits);
+    }
+
+    static Chunker fixed(int size) {
+        return new Chunker(false, size, size, size);
+    }
+
+    static Chunker contentDefined(int minSize, int avgSize, int maxSize) {
+        if (minSize <= 0 || minSize > avgSize || avgSize > maxSize) {
+            throw new IllegalArgumentException("Chunk sizes must satisfy 0 < min <= avg <= max");
+        }
+        return new Chunker(true, minSize, avgSize, maxSize);
+    }
+
+    int maxChunkSize() {
+        return maxSize;
+    }
+
+    // Fixed cut points don't depend on earlier data, so a file can be chunked in parts
+    boolean isFixed() {
+        return !contentDefined;
+    }
+
+    // Blocks are only reusable between files cut with the same parameters
+    @Override
+    public String toString() {
+        return contentDefined ? String.format("cdc:%d:%d:%x", minSize, maxSize, mask) : "fixed:" + maxSize;
+    }
+
+    // Returns the length of the chunk starting at the position of buf, without moving it.
+    // The caller passes at least maxChunkSize() bytes unless it has reached the end of the file.
+    int nextChunk(ByteBuffer buf) {
+        int off = buf.position();
+        int len = buf.remaining();
+        if (!contentDefined || len <= minSize) {
+            return Math.min(len, maxSize);
+        }
+
+        int end = Math.min(len, maxSize);
+        long hash = 0;
+        for (int i = minSize; i < end; i++) {
+            hash = (hash << 1) + GEAR[buf.get(off + i) & 0xff];
+            if ((hash & mask) == 0) {
+                return i + 1;
+            }
+        }
+
+        return end;
+    }
+}
@@ -1,17 +1,24 @@
 package surfstore;
 
+import java.io.Closeable;
 import java.io.File;
-import java.nio.charset.StandardCharsets;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.TimeUnit;
+import java.util.Set;
+import java.util.concurrent.CompletionException;
+import java.util.function.Function;
 import java.util.logging.Logger;
 
-import com.google.protobuf.ByteString;
-import io.grpc.ManagedChannel;
-import io.grpc.ManagedChannelBuilder;
+import io.grpc.StatusRuntimeException;
 import net.sourceforge.argparse4j.ArgumentParsers;
 import net.sourceforge.argparse4j.inf.ArgumentParser;
 import net.sourceforge.argparse4j.inf.ArgumentParserException;
@@ -25,49 +32,48 @@ import surfstore.SurfStoreBasic.WriteResult;
 public final class Client {
     private static final Logger logger = Logger.getLogger(Client.class.getName());
 
-    private final ManagedChannel leaderChannel;
-    private final MetadataStoreGrpc.MetadataStoreBlockingStub leaderStub;
+    private static final int DEFAULT_WINDOW = 8;
+    private static final int DEFAULT_BATCH = 64;
+    // How long to wait for a write whose outcome the leader couldn't tell to show up
+    private static final long OUTCOME_WAIT_MS = 2000;
+    private static final long OUTCOME_POLL_MS = 100;
+    private static final int MAX_UNKNOWN_RETRIES = 3;
 
-    private final ManagedChannel blockChannel;
-    private final BlockStoreGrpc.BlockStoreBlockingStub blockStub;
-    private MetadataStoreGrpc.MetadataStoreBlockingStub[] metaStubs;
+    private final BlockCluster blocks;
+
+    // Files are spread over the metadata groups by ConfigReader.getGroupForFile, group g is
+    // metaGroups[g - 1]
+    private final MetadataGroup[] metaGroups;
 
     private final ConfigReader config;
+    private final Chunker chunker;
+    private final boolean followerReads;
+    private final boolean compress;
 
     public Client(ConfigReader config) {
-        int leader = config.getLeaderNum();
-        this.leaderChannel = ManagedChannelBuilder.forAddress("127.0.0.1", config.getMetadataPort(leader))
-                .usePlaintext(true).build();
-        this.leaderStub = MetadataStoreGrpc.newBlockingStub(leaderChannel);
+        this(config, DEFAULT_WINDOW, DEFAULT_BATCH, Chunker.fixed(BlockUtil.BLOCKSIZE), false, true);
+    }
 
-        this.blockChannel = ManagedChannelBuilder.forAddress("127.0.0.1", config.getBlockPort())
-                .usePlaintext(true).build();
-        this.blockStub = BlockStoreGrpc.newBlockingStub(blockChannel);
+    public Client(ConfigReader config, int window, int batchSize, Chunker chunker, boolean followerReads,
+                  boolean compress) {
+        this.blocks = new BlockCluster(config, window, batchSize);
 
-        this.metaStubs = new MetadataStoreGrpc.MetadataStoreBlockingStub[config.getNumMetadataServers() - 1];
-        for (int i = 1, j = 0; i <= config.getNumMetadataServers(); i++) {
-            if (i != leader) {
-                ManagedChannel mChannel = ManagedChannelBuilder.forAddress("127.0.0.1",
-                        config.getMetadataPort(i)).usePlaintext(true).build();
-                this.metaStubs[j++] = MetadataStoreGrpc.newBlockingStub(mChannel);
-            }
+        this.metaGroups = new MetadataGroup[config.getNumGroups()];
+        for (int g = 0; g < metaGroups.length; g++) {
+            metaGroups[g] = new MetadataGroup(config, g + 1);
         }
 
         this.config = config;
+        this.chunker = chunker;
+        this.followerReads = followerReads;
+        this.compress = compress;
     }
 
     public void shutdown() throws InterruptedException {
-        leaderChannel.shutdown().awaitTermination(5, TimeUnit.SECONDS);
-        blockChannel.shutdown().awaitTermination(5, TimeUnit.SECONDS);
-    }
-
-    private Block stringToBlock(String s) {
-        Block.Builder builder = Block.newBuilder();
-
-        builder.setHash(BlockUtil.sha256(s));
-        builder.setData(ByteString.copyFrom(s, StandardCharsets.UTF_8));
-
-        return builder.build();
+        for (MetadataGroup group : metaGroups) {
+            group.shutdown();
+        }
+        blocks.shutdown();
     }
 
 	private void go(Namespace c_args) {
@@ -78,6 +84,9 @@ public final class Client {
         if (command.equals("upload")) {
             upload(filename);
         } else if (command.equals("download")) {
+            if (directory == null) {
+                throw new IllegalArgumentException("download requires download_dir");
+            }
             download(filename, directory);
         } else if (command.equals("delete")) {
             delete(filename);
@@ -88,41 +97,89 @@ public final class Client {
         }
 	}
 
-	private synchronized void upload(String filepath) {
+	private void upload(String filepath) {
+        try (MappedBlockFile file = new MappedBlockFile(Paths.get(filepath))) {
+            upload(filepath, file);
+        } catch (NoSuchFileException e) {
+            System.out.println("Not Found");
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.out.println("Not Found");
+        } catch (StatusRuntimeException | CompletionException e) {
+            // Writes need every copy of their blocks, a block server that is down fails them
+            logger.warning("Upload failed: " + e.getMessage());
+            System.out.println("Unavailable");
+        }
+    }
+
+    private void upload(String filepath, MappedBlockFile file) throws IOException {
         String[] path = filepath.trim().split("/");
         String filename = path[path.length - 1];
         FileInfo.Builder builder = FileInfo.newBuilder().setFilename(filename);
 
-        List<String> dataBlocks = BlockUtil.readBlocksFromFile(filepath);
-        if (dataBlocks == null) {
-            System.out.println("Not Found");
-            return;
-        }
+        // Only hashes and offsets are kept, block data is read back from the mapped file when sent
+        List<BlockUtil.BlockRef> blockRefs = BlockUtil.readBlocksFromFile(file, chunker);
 
-        int version = leaderStub.getVersion(builder.build()).getVersion();
+        // The committed version from the leader, its block list tells which blocks are new
+        FileInfo committed = metaGroup(builder.build()).readFile(builder.build(), false);
+        int version = committed.getVersion();
         builder.setVersion(++version);
 
-        Map<String, Block> blockMap = new HashMap<>();
-        for (String d : dataBlocks) {
-            Block block = stringToBlock(d);
-            builder.addBlocklist(block.getHash());
-            blockMap.put(block.getHash(), block);
+        Map<String, BlockUtil.BlockRef> blockMap = new HashMap<>();
+        for (BlockUtil.BlockRef ref : blockRefs) {
+            builder.addBlocklist(ref.hash);
+            blockMap.put(ref.hash, ref);
+        }
+        Function<String, Block> loader = hash -> {
+            try {
+                return file.readBlock(blockMap.get(hash), compress);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        };
+
+        // An update of an existing file pushes the blocks the old version doesn't have before it
+        // commits, so it usually takes a single ModifyFile. A new file leaves it to the leader to
+        // tell which blocks are missing, those may well be on the block servers already.
+        if (committed.getBlocklistCount() > 0 && !committed.getBlocklist(0).equals("0")) {
+            Set<String> oldBlocks = new HashSet<>(committed.getBlocklistList());
+            List<String> newBlocks = new ArrayList<>();
+            for (String hash : blockMap.keySet()) {
+                if (!oldBlocks.contains(hash)) {
+                    newBlocks.add(hash);
+                }
+            }
+            blocks.storeBlocks(newBlocks, loader).join();
         }
 
+        int unknown = 0;
         while (true) {
-            WriteResult response = leaderStub.modifyFile(builder.build());
+            WriteResult response = modifyFile(builder.build());
             if (response.getResult() == WriteResult.Result.NOT_LEADER) {
                 System.out.println("Not Leader");
                 return;
             }
             while (response.getResult() == WriteResult.Result.OLD_VERSION) {
                 builder.setVersion(++version);
-                response = leaderStub.modifyFile(builder.build());
+                response = modifyFile(builder.build());
             }
             if (response.getResult() == WriteResult.Result.MISSING_BLOCKS) {
-                for (String hash : response.getMissingBlocksList()) {
-                    blockStub.storeBlock(blockMap.get(hash));
+                blocks.storeBlocks(response.getMissingBlocksList(), loader).join();
+            }
+            if (response.getResult() == WriteResult.Result.UNKNOWN) {
+                if (++unknown > MAX_UNKNOWN_RETRIES) {
+                    System.out.println("Unknown");
+                    return;
+                }
+                FileInfo latest = awaitOutcome(filename, version);
+                if (latest.getVersion() == version
+                        && latest.getBlocklistList().equals(builder.getBlocklistList())) {
+                    System.out.println("OK");
+                    return;
                 }
+                // Not applied, or overwritten since, write it again
+                version = Math.max(version - 1, latest.getVersion());
+                builder.setVersion(++version);
             }
             if (response.getResult() == WriteResult.Result.ABORT) {
                 System.out.println("Abort");
@@ -135,42 +192,100 @@ public final class Client {
         }
     }
 
-    private synchronized void download(String filename, String dir) {
+    private void download(String filename, String dir) {
         FileInfo request = FileInfo.newBuilder().setFilename(filename).build();
-        FileInfo response = leaderStub.readFile(request);
+        FileInfo response = readFile(request);
 
-        Map<String, byte[]> hashBlockMap = BlockUtil.scanBlocksInDir(dir);
-        if (hashBlockMap == null) {
+        LocalBlockIndex localIndex;
+        try {
+            localIndex = LocalBlockIndex.open(new File(dir), chunker);
+        } catch (IOException e) {
             System.out.println("Not Found");
             return;
         }
 
         if (response.getVersion() == 0 || response.getBlocklistList().isEmpty() ||
             response.getBlocklist(0).equals("0")) {
+            closeQuietly(localIndex);
             System.out.println("Not Found");
             return;
         }
 
-        List<byte[]> blocksToWrite = new ArrayList<>();
-        for (String hash : response.getBlocklistList()) {
-            if (hashBlockMap.containsKey(hash)) {
-                blocksToWrite.add(hashBlockMap.get(hash));
-            } else {
-                Block block = blockStub.getBlock(Block.newBuilder().setHash(hash).build());
-                blocksToWrite.add(block.getData().toByteArray());
+        // Blocks are written at their offsets as they arrive, remote ones are fetched in file order
+        // and local ones are only read once the writer gets to them. Remote blocks are requested
+        // no further ahead of the writer than the block servers can have in flight.
+        List<String> blockList = response.getBlocklistList();
+        try (LocalBlockIndex index = localIndex;
+             BlockFileWriter writer = new BlockFileWriter(Paths.get(dir, filename), blockList,
+                     blocks.blocksInFlight())) {
+            List<String> remoteHashes = new ArrayList<>();
+            for (String hash : new LinkedHashSet<>(blockList)) {
+                if (index.contains(hash)) {
+                    writer.put(hash, index.size(hash), () -> index.read(hash));
+                } else {
+                    remoteHashes.add(hash);
+                }
             }
-        }
 
-        if (BlockUtil.writeBlocksToFile(filename, dir, blocksToWrite)) {
+            // A block no server has ends the download, the blocks after it could never be written
+            blocks.getBlocks(remoteHashes, writer::awaitWindow, (hash, block) -> {
+                try {
+                    if (block.getHash().isEmpty()) {
+                        throw new IOException("No block server has block " + hash);
+                    }
+                    writer.put(hash, BlockCodec.data(block).asReadOnlyByteBuffer());
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }).join();
+
+            writer.commit();
+            index.update(filename, writer.blockRefs());
+            index.save();
             System.out.println("OK");
-        } else {
+        } catch (IOException | CompletionException e) {
+            logger.warning("Download failed: " + e.getMessage());
             System.out.println("Not Found");
         }
     }
 
+    private MetadataGroup metaGroup(FileInfo request) {
+        return metaGroups[config.getGroupForFile(request.getFilename()) - 1];
+    }
+
+    // With follower reads any server of the group may answer. Versions for writes always come
+    // from the leader.
+    private FileInfo readFile(FileInfo request) {
+        return metaGroup(request).readFile(request, followerReads);
+    }
+
+    private int leaderVersion(FileInfo request) {
+        return metaGroup(request).onLeader(stub -> stub.getVersion(request), response -> false).getVersion();
+    }
+
+    private WriteResult modifyFile(FileInfo request) {
+        return metaGroup(request).onLeader(stub -> stub.modifyFile(request), Client::isNotLeader);
+    }
+
+    private WriteResult deleteFile(FileInfo request) {
+        return metaGroup(request).onLeader(stub -> stub.deleteFile(request), Client::isNotLeader);
+    }
+
+    private static boolean isNotLeader(WriteResult result) {
+        return result.getResult() == WriteResult.Result.NOT_LEADER;
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
     private synchronized void delete(String filename) {
         FileInfo.Builder builder = FileInfo.newBuilder().setFilename(filename);
-        int version = leaderStub.getVersion(builder.build()).getVersion();
+        int version = leaderVersion(builder.build());
 
         if (version == 0) {
             System.out.println("Not Found");
@@ -178,30 +293,67 @@ public final class Client {
         }
 
         builder.setVersion(++version);
-        WriteResult response = leaderStub.deleteFile(builder.build());
+        int unknown = 0;
+        while (true) {
+            WriteResult response = deleteFile(builder.build());
 
-        if (response.getResult() == WriteResult.Result.NOT_LEADER) {
-            System.out.println("Not Leader");
-            return;
-        }
-        if (response.getResult() == WriteResult.Result.ABORT) {
-            System.out.println("Abort");
+            if (response.getResult() == WriteResult.Result.NOT_LEADER) {
+                System.out.println("Not Leader");
+                return;
+            }
+            if (response.getResult() == WriteResult.Result.ABORT) {
+                System.out.println("Abort");
+                return;
+            }
+            while (response.getResult() == WriteResult.Result.OLD_VERSION) {
+                builder.setVersion(++version);
+                response = deleteFile(builder.build());
+            }
+            if (response.getResult() == WriteResult.Result.UNKNOWN) {
+                if (++unknown > MAX_UNKNOWN_RETRIES) {
+                    System.out.println("Unknown");
+                    return;
+                }
+                FileInfo latest = awaitOutcome(filename, version);
+                if (latest.getVersion() == version && latest.getBlocklistCount() == 1
+                        && latest.getBlocklist(0).equals("0")) {
+                    System.out.println("OK");
+                    return;
+                }
+                version = Math.max(version - 1, latest.getVersion());
+                builder.setVersion(++version);
+                continue;
+            }
+
+            System.out.println("OK");
             return;
         }
-        while (response.getResult() == WriteResult.Result.OLD_VERSION) {
-            builder.setVersion(++version);
-            response = leaderStub.deleteFile(builder.build());
-        }
+    }
 
-        System.out.println("OK");
+    // A write the leader answered UNKNOWN for either commits or is dropped once leadership
+    // settles. Waits until the leader has the version or OUTCOME_WAIT_MS pass, and returns the
+    // committed file as last seen.
+    private FileInfo awaitOutcome(String filename, int version) {
+        FileInfo request = FileInfo.newBuilder().setFilename(filename).build();
+        long deadline = System.currentTimeMillis() + OUTCOME_WAIT_MS;
+        while (true) {
+            FileInfo committed = metaGroup(request).readFile(request, false);
+            if (committed.getVersion() >= version || System.currentTimeMillis() >= deadline) {
+                return committed;
+            }
+            try {
+                Thread.sleep(OUTCOME_POLL_MS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return committed;
+            }
+        }
     }
 
     private synchronized void getVersion(String filename) {
         FileInfo request = FileInfo.newBuilder().setFilename(filename).build();
-        System.out.println(leaderStub.getVersion(request).getVersion());
-
-        for (MetadataStoreGrpc.MetadataStoreBlockingStub follower : metaStubs) {
-            System.out.println(follower.getVersion(request).getVersion());
+        for (String version : metaGroup(request).versions(request)) {
+            System.out.println(version);
         }
     }
 
@@ -215,11 +367,25 @@ public final class Client {
                 .help("Client command, upload/download/delete/getversion");
         parser.addArgument("target_file").type(String.class)
                 .help("Path of file to upload or filename to download/delete/getversion");
-
-        if (args[1].equals("download")) {
-            parser.addArgument("download_dir").type(String.class)
-                    .help("Path of download directory");
-        }
+        parser.addArgument("-w", "--window").type(Integer.class).setDefault(DEFAULT_WINDOW)
+                .help("Maximum number of block batches in flight at once");
+        parser.addArgument("-b", "--batch").type(Integer.class).setDefault(DEFAULT_BATCH)
+                .help("Number of blocks sent per StoreBlocks/GetBlocks stream");
+        parser.addArgument("-c", "--chunking").type(String.class).choices("fixed", "cdc").setDefault("fixed")
+                .help("Cut files into fixed 4 KB blocks or content defined chunks");
+        parser.addArgument("--min_chunk").type(Integer.class).setDefault(2 * 1024)
+                .help("Minimum chunk size in bytes for content defined chunking");
+        parser.addArgument("--avg_chunk").type(Integer.class).setDefault(8 * 1024)
+                .help("Average chunk size in bytes for content defined chunking");
+        parser.addArgument("-r", "--read").type(String.class).choices("leader", "any").setDefault("leader")
+                .help("Read file metadata from the leader only or from any metadata server");
+        parser.addArgument("--max_chunk").type(Integer.class).setDefault(64 * 1024)
+                .help("Maximum chunk size in bytes for content defined chunking");
+        parser.addArgument("-z", "--compression").type(String.class).choices("deflate", "none").setDefault("deflate")
+                .help("Deflate uploaded blocks where that makes them smaller, or send them as they are");
+
+        parser.addArgument("download_dir").type(String.class).nargs("?")
+                .help("Path of download directory, required for download");
         
         Namespace res = null;
         try {
@@ -240,7 +406,16 @@ public final class Client {
         File configf = new File(c_args.getString("config_file"));
         ConfigReader config = new ConfigReader(configf);
 
-        Client client = new Client(config);
+        Chunker chunker;
+        if (c_args.getString("chunking").equals("cdc")) {
+            chunker = Chunker.contentDefined(c_args.getInt("min_chunk"), c_args.getInt("avg_chunk"),
+                    c_args.getInt("max_chunk"));
+        } else {
+            chunker = Chunker.fixed(BlockUtil.BLOCKSIZE);
+        }
+
+        Client client = new Client(config, c_args.getInt("window"), c_args.getInt("batch"), chunker,
+                c_args.getString("read").equals("any"), c_args.getString("compression").equals("deflate"));
         
         try {
         	client.go(c_args);
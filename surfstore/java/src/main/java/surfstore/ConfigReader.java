@@ -3,7 +3,9 @@ package surfstore;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.nio.file.Files;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -11,14 +13,18 @@ public final class ConfigReader {
     private static final String numMetadataMatchStr = "M(:|=)\\s*(?<numMetadata>\\d+)";
     private static final String leaderNumMatchStr = "L(:|=)\\s*(?<leaderNum>\\d+)";
     private static final String metadataInstMatchStr = "metadata(?<metadataId>\\d+)(:|=)\\s*(?<metadataPort>\\d+)";
-    private static final String blockInstMatchStr = "block(:|=)\\s*(?<blockPort>\\d+)";
+    private static final String blockInstMatchStr = "block(?<blockId>\\d*)(:|=)\\s*(?<blockPort>\\d+)";
+    private static final String numGroupsMatchStr = "G(:|=)\\s*(?<numGroups>\\d+)";
+    private static final String numReplicasMatchStr = "R(:|=)\\s*(?<numReplicas>\\d+)";
     
     private static final Pattern configMatcher = Pattern.compile(
-            String.format("((%s)|(%s)|(%s)|(%s))\\s*",
+            String.format("((%s)|(%s)|(%s)|(%s)|(%s)|(%s))\\s*",
                 numMetadataMatchStr,
                 metadataInstMatchStr,
                 blockInstMatchStr,
-                leaderNumMatchStr
+                leaderNumMatchStr,
+                numGroupsMatchStr,
+                numReplicasMatchStr
             ));
 
     protected File configFile;
@@ -27,7 +33,14 @@ public final class ConfigReader {
     public Integer numMetadataServers;
     public HashMap<Integer, Integer> metadataPorts;
     public Integer blockPort;
+    public HashMap<Integer, Integer> blockPorts;
+    public Integer numBlockReplicas;
     public Integer leaderNum;
+    public Integer numGroups;
+
+    // Which group keeps the metadata of a file and which block servers keep a block
+    private HashRing groupRing;
+    private HashRing blockRing;
     
 	public ConfigReader(File configFile) throws FileNotFoundException {
 		if (!configFile.exists()) {
@@ -51,6 +64,7 @@ public final class ConfigReader {
 
 	protected void parseConfigFile() {
         metadataPorts = new HashMap<Integer, Integer>();
+        blockPorts = new HashMap<Integer, Integer>();
 
         for(String line : config.split("\\r?\\n")) {
             Matcher result = configMatcher.matcher(line);
@@ -65,12 +79,20 @@ public final class ConfigReader {
                 metadataPorts.put(Integer.parseInt(result.group("metadataId")),
                                   Integer.parseInt(result.group("metadataPort")));
             } else if (result.group("blockPort") != null) {
-                blockPort = Integer.parseInt(result.group("blockPort"));
+                // A plain block line is the first and only block server
+                String blockId = result.group("blockId");
+                blockPorts.put(blockId.isEmpty() ? 1 : Integer.parseInt(blockId),
+                               Integer.parseInt(result.group("blockPort")));
+            } else if (result.group("numGroups") != null) {
+                numGroups = Integer.parseInt(result.group("numGroups"));
+            } else if (result.group("numReplicas") != null) {
+                numBlockReplicas = Integer.parseInt(result.group("numReplicas"));
             } else{
                 System.err.println("ConfigReader: Invalid line:\n" + line);
             }
         }
 
+        blockPort = blockPorts.get(1);
         if (numMetadataServers == null || blockPort == null || leaderNum == null) {
             throw new RuntimeException("Config file is missing one or more required lines!");
         }
@@ -79,6 +101,30 @@ public final class ConfigReader {
             if (!metadataPorts.containsKey(i))
                 throw new RuntimeException("Must set port for metadata" + i);
         }
+
+        // Without a G line all metadata servers form a single group
+        if (numGroups == null) {
+            numGroups = 1;
+        }
+        if (numGroups < 1 || numMetadataServers % numGroups != 0) {
+            throw new RuntimeException("Metadata servers must split evenly into " + numGroups + " groups!");
+        }
+        groupRing = new HashRing("group", numGroups);
+
+        for(int i = 1; i <= blockPorts.size(); i++) {
+            if (!blockPorts.containsKey(i))
+                throw new RuntimeException("Must set port for block" + i);
+        }
+
+        // Without an R line every block is kept by one block server
+        if (numBlockReplicas == null) {
+            numBlockReplicas = 1;
+        }
+        if (numBlockReplicas < 1 || numBlockReplicas > blockPorts.size()) {
+            throw new RuntimeException("Can't keep " + numBlockReplicas + " copies on " + blockPorts.size()
+                    + " block servers!");
+        }
+        blockRing = new HashRing("block", blockPorts.size());
     }
 
     public int getNumMetadataServers() {
@@ -92,8 +138,56 @@ public final class ConfigReader {
     public int getBlockPort() {
         return blockPort;
     }
+
+    public int getNumBlockServers() {
+        return blockPorts.size();
+    }
+
+    public int getBlockPort(int serverId) {
+        return blockPorts.get(serverId);
+    }
+
+    public int getNumBlockReplicas() {
+        return numBlockReplicas;
+    }
+
+    // The block servers that keep copies of a block, the first one is asked for it first
+    public List<Integer> getBlockServersFor(String hash) {
+        return blockRing.nodesFor(hash, numBlockReplicas);
+    }
     
     public int getLeaderNum() {
     	return leaderNum;
     }
+
+    public int getNumGroups() {
+        return numGroups;
+    }
+
+    // Servers are split into groups of consecutive numbers, metadata1 to metadataK form group 1
+    public int getGroupSize() {
+        return numMetadataServers / numGroups;
+    }
+
+    public int getGroup(int serverId) {
+        return (serverId - 1) / getGroupSize() + 1;
+    }
+
+    public List<Integer> getGroupMembers(int group) {
+        List<Integer> members = new ArrayList<>();
+        for (int i = 1; i <= getGroupSize(); i++) {
+            members.add((group - 1) * getGroupSize() + i);
+        }
+        return members;
+    }
+
+    // L names the server of group 1 that runs the first election, the other groups start with
+    // the server in the same position
+    public int getLeaderNum(int group) {
+        return (group - 1) * getGroupSize() + (leaderNum - 1) % getGroupSize() + 1;
+    }
+
+    public int getGroupForFile(String filename) {
+        return groupRing.nodeFor(filename);
+    }
 }
\ No newline at end of file
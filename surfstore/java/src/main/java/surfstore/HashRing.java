@@ -0,0 +1,85 @@
+package surfstore;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/*
+ * Consistent hashing of keys onto numbered nodes, filenames onto metadata
+ * groups and block hashes onto block servers. Every node owns VIRTUAL_NODES
+ * points on a 64 bit ring and a key belongs to the node of the first point at
+ * or after its hash, its replicas to the next distinct nodes going around.
+ * Adding a node only moves the keys that fall just before its points, about
+ * 1/n of them, and the points spread each node's share evenly over the ring.
+ */
+class HashRing {
+    private static final int VIRTUAL_NODES = 256;
+
+    private final TreeMap<Long, Integer> points = new TreeMap<>();
+    private final int numNodes;
+
+    // Nodes are numbered from 1 like the servers in the config, prefix keeps the points of
+    // different kinds of nodes apart
+    HashRing(String prefix, int numNodes) {
+        this.numNodes = numNodes;
+        for (int node = 1; node <= numNodes; node++) {
+            for (int v = 0; v < VIRTUAL_NODES; v++) {
+                points.put(hash(prefix + node + "#" + v), node);
+            }
+        }
+    }
+
+    int nodeFor(String key) {
+        Map.Entry<Long, Integer> point = points.ceilingEntry(hash(key));
+        return point != null ? point.getValue() : points.firstEntry().getValue();
+    }
+
+    // The node of the key followed by the next count - 1 distinct nodes on the ring
+    List<Integer> nodesFor(String key, int count) {
+        count = Math.min(count, numNodes);
+        List<Integer> nodes = new ArrayList<>(count);
+        if (count == 0) {
+            return nodes;
+        }
+
+        // Walk the ring from the key's point, wrapping around to the start
+        long h = hash(key);
+        for (int node : points.tailMap(h, true).values()) {
+            addDistinct(nodes, node);
+            if (nodes.size() == count) {
+                return nodes;
+            }
+        }
+        for (int node : points.headMap(h, false).values()) {
+            addDistinct(nodes, node);
+            if (nodes.size() == count) {
+                return nodes;
+            }
+        }
+        return nodes;
+    }
+
+    private static void addDistinct(List<Integer> nodes, int node) {
+        if (!nodes.contains(node)) {
+            nodes.add(node);
+        }
+    }
+
+    // 64 bit FNV-1a with a final mix, clients and servers must agree on it so String.hashCode
+    // won't do
+    static long hash(String key) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+            h ^= b & 0xff;
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -0,0 +1,227 @@
+package surfstore;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+
+/*
+ * Remembers which blocks the files of a download directory are made of, so
+ * a download only has to hash files that changed since the last run. Each
+ * file is recorded with its size and modification time and is hashed again
+ * when either differs. The index is kept in INDEX_FILE inside the directory
+ * and is thrown away if it was built with a different chunker. Block data is
+ * not kept, read() maps it from the file when the writer needs it.
+ */
+class LocalBlockIndex implements Closeable {
+    static final String INDEX_FILE = ".surfstore-index";
+    private static final int FORMAT = 1;
+
+    private final File dir;
+    private final Chunker chunker;
+    private final Map<String, FileEntry> files;
+    private final Map<String, Location> blocks;
+    private final Map<String, MappedBlockFile> open;
+    private boolean dirty;
+
+    private static final class FileEntry {
+        final long size;
+        final long mtime;
+        final List<BlockUtil.BlockRef> blocks;
+
+        FileEntry(long size, long mtime, List<BlockUtil.BlockRef> blocks) {
+            this.size = size;
+            this.mtime = mtime;
+            this.blocks = blocks;
+        }
+    }
+
+    private static final class Location {
+        final String file;
+        final BlockUtil.BlockRef ref;
+
+        Location(String file, BlockUtil.BlockRef ref) {
+            this.file = file;
+            this.ref = ref;
+        }
+    }
+
+    private LocalBlockIndex(File dir, Chunker chunker) {
+        this.dir = dir;
+        this.chunker = chunker;
+        this.files = new HashMap<>();
+        this.blocks = new HashMap<>();
+        this.open = new HashMap<>();
+    }
+
+    // Load the index of dir and bring it up to date with the files in it
+    static LocalBlockIndex open(File dir, Chunker chunker) throws IOException {
+        if (!dir.isDirectory()) {
+            throw new FileNotFoundException(dir + " is not a directory");
+        }
+
+        LocalBlockIndex index = new LocalBlockIndex(dir, chunker);
+        index.load();
+        index.refresh();
+        return index;
+    }
+
+    // Our own index and the temporary files of BlockFileWriter are not content
+    private static boolean isContent(File file) {
+        String name = file.getName();
+        return file.isFile() && !name.startsWith(INDEX_FILE) && !(name.startsWith(".") && name.endsWith(".part"));
+    }
+
+    private void load() {
+        File indexFile = new File(dir, INDEX_FILE);
+        if (!indexFile.exists()) {
+            return;
+        }
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)))) {
+            if (in.readInt() != FORMAT || !in.readUTF().equals(chunker.toString())) {
+                dirty = true;
+                return;
+            }
+
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String name = in.readUTF();
+                long size = in.readLong();
+                long mtime = in.readLong();
+                int numBlocks = in.readInt();
+
+                List<BlockUtil.BlockRef> refs = new ArrayList<>(numBlocks);
+                byte[] hash = new byte[32];
+                for (int j = 0; j < numBlocks; j++) {
+                    in.readFully(hash);
+                    refs.add(new BlockUtil.BlockRef(Base64.getEncoder().encodeToString(hash), in.readLong(), in.readInt()));
+                }
+                files.put(name, new FileEntry(size, mtime, refs));
+            }
+        } catch (IOException e) {
+            // A damaged index only costs a rescan
+            files.clear();
+            dirty = true;
+        }
+    }
+
+    private void refresh() throws IOException {
+        File[] current = dir.listFiles(LocalBlockIndex::isContent);
+        if (current == null) {
+            throw new IOException("Unable to list " + dir);
+        }
+
+        Set<String> names = new HashSet<>();
+        List<File> changed = new ArrayList<>();
+        Map<String, long[]> stats = new HashMap<>();
+        for (File file : current) {
+            names.add(file.getName());
+            FileEntry entry = files.get(file.getName());
+            long size = file.length();
+            long mtime = file.lastModified();
+            if (entry == null || entry.size != size || entry.mtime != mtime) {
+                changed.add(file);
+                stats.put(file.getName(), new long[]{size, mtime});
+            }
+        }
+        dirty |= files.keySet().retainAll(names);
+
+        if (!changed.isEmpty()) {
+            // Recorded with the stat taken before hashing, so a file modified during the
+            // scan is hashed again next time
+            Map<String, List<BlockUtil.BlockRef>> scanned = BlockUtil.scanBlocksInFiles(changed, chunker);
+            for (File file : changed) {
+                List<BlockUtil.BlockRef> refs = scanned.get(file.getName());
+                long[] stat = stats.get(file.getName());
+                if (refs == null) {
+                    files.remove(file.getName());
+                } else {
+                    files.put(file.getName(), new FileEntry(stat[0], stat[1], refs));
+                }
+            }
+            dirty = true;
+        }
+
+        for (Map.Entry<String, FileEntry> entry : files.entrySet()) {
+            for (BlockUtil.BlockRef ref : entry.getValue().blocks) {
+                blocks.putIfAbsent(ref.hash, new Location(entry.getKey(), ref));
+            }
+        }
+    }
+
+    boolean contains(String hash) {
+        return blocks.containsKey(hash);
+    }
+
+    int size(String hash) {
+        return blocks.get(hash).ref.length;
+    }
+
+    // Map the block from the file it was indexed in and check it is still the same
+    ByteBuffer read(String hash) throws IOException {
+        Location location = blocks.get(hash);
+        if (location == null) {
+            throw new IOException("Block " + hash + " is not in " + dir);
+        }
+
+        MappedBlockFile file = open.get(location.file);
+        if (file == null) {
+            file = new MappedBlockFile(new File(dir, location.file).toPath());
+            open.put(location.file, file);
+        }
+
+        ByteBuffer data = file.slice(location.ref.offset, location.ref.length);
+        if (!BlockUtil.sha256(data).equals(hash)) {
+            throw new IOException(location.file + " changed while it was being read");
+        }
+        return data;
+    }
+
+    // Record a file we just wrote so the next run doesn't have to hash it
+    void update(String name, List<BlockUtil.BlockRef> refs) {
+        File file = new File(dir, name);
+        files.put(name, new FileEntry(file.length(), file.lastModified(), refs));
+        dirty = true;
+    }
+
+    void save() throws IOException {
+        if (!dirty) {
+            return;
+        }
+
+        Path path = new File(dir, INDEX_FILE).toPath();
+        Path tmp = path.resolveSibling(INDEX_FILE + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+            out.writeInt(FORMAT);
+            out.writeUTF(chunker.toString());
+            out.writeInt(files.size());
+
+            for (Map.Entry<String, FileEntry> entry : files.entrySet()) {
+                FileEntry file = entry.getValue();
+                out.writeUTF(entry.getKey());
+                out.writeLong(file.size);
+                out.writeLong(file.mtime);
+                out.writeInt(file.blocks.size());
+
+                for (BlockUtil.BlockRef ref : file.blocks) {
+                    out.write(Base64.getDecoder().decode(ref.hash));
+                    out.writeLong(ref.offset);
+                    out.writeInt(ref.length);
+                }
+            }
+        }
+        Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        dirty = false;
+    }
+
+    @Override
+    public void close() throws IOException {
+        for (MappedBlockFile file : open.values()) {
+            file.close();
+        }
+        open.clear();
+    }
+}
@@ -0,0 +1,114 @@
+package surfstore;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import surfstore.SurfStoreBasic.Block;
+
+/*
+ * Read-only view of a file through memory mapped windows, so files of any
+ * size can be chunked and read back block by block without loading them
+ * on the heap. Only one window of WINDOW_SIZE bytes is mapped at a time.
+ */
+class MappedBlockFile implements Closeable {
+    private static final long WINDOW_SIZE = 64 * 1024 * 1024;
+
+    private final FileChannel channel;
+    private final long size;
+
+    private MappedByteBuffer window;
+    private long windowStart;
+
+    MappedBlockFile(Path path) throws IOException {
+        this.channel = FileChannel.open(path, StandardOpenOption.READ);
+        this.size = channel.size();
+    }
+
+    long size() {
+        return size;
+    }
+
+    // Map a window starting at offset that holds at least length bytes, or runs to the end of the file
+    private void mapWindow(long offset, int length) throws IOException {
+        if (window != null && offset >= windowStart
+                && offset + length <= windowStart + window.capacity()) {
+            return;
+        }
+
+        long mapSize = Math.min(Math.max(WINDOW_SIZE, length), size - offset);
+        window = channel.map(FileChannel.MapMode.READ_ONLY, offset, mapSize);
+        windowStart = offset;
+    }
+
+    // Returns a view of [offset, offset + length), only valid until the next call
+    synchronized ByteBuffer slice(long offset, int length) throws IOException {
+        if (offset < 0 || length < 0 || offset + length > size) {
+            throw new IOException("Block [" + offset + ", " + (offset + length) + ") is outside of the file");
+        }
+
+        mapWindow(offset, length);
+        ByteBuffer view = window.duplicate();
+        view.position((int) (offset - windowStart));
+        view.limit(view.position() + length);
+        return view;
+    }
+
+    // Reads the block back, deflated if compress is set and that pays off, and checks it still
+    // has the hash it was indexed with
+    Block readBlock(BlockUtil.BlockRef ref, boolean compress) throws IOException {
+        ByteBuffer chunk = slice(ref.offset, ref.length);
+        if (!BlockUtil.sha256(chunk).equals(ref.hash)) {
+            throw new IOException("File changed while it was being read");
+        }
+        return compress ? BlockCodec.compress(ref.hash, chunk) : BlockUtil.toBlock(ref.hash, chunk);
+    }
+
+    void forEachChunk(Chunker chunker, BlockUtil.ChunkConsumer consumer) throws IOException {
+        forEachChunk(chunker, 0, size, consumer);
+    }
+
+    // Chunk [start, end) only, start has to be a cut point
+    void forEachChunk(Chunker chunker, long start, long end, BlockUtil.ChunkConsumer consumer) throws IOException {
+        if (start < 0 || end > size) {
+            throw new IOException("Range [" + start + ", " + end + ") is outside of the file");
+        }
+
+        int maxSize = chunker.maxChunkSize();
+        long offset = start;
+
+        while (offset < end) {
+            int available = (int) Math.min(maxSize, end - offset);
+            ByteBuffer buf;
+            long base;
+            synchronized (this) {
+                mapWindow(offset, available);
+                buf = window.duplicate();
+                base = windowStart;
+            }
+
+            // Cut chunks until the window no longer holds a full max sized chunk
+            int pos = (int) (offset - base);
+            int limit = (int) (Math.min(base + buf.capacity(), end) - base);
+            while (offset < end && (limit - pos >= maxSize || base + limit == end)) {
+                buf.limit(limit).position(pos);
+                int len = chunker.nextChunk(buf);
+                buf.limit(pos + len);
+                consumer.accept(offset, buf);
+
+                offset += len;
+                pos += len;
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        window = null;
+        channel.close();
+    }
+}
@@ -0,0 +1,44 @@
+package surfstore;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import surfstore.SurfStoreBasic.Block;
+
+// Keeps the Block messages gRPC parsed, they are sent back as they are
+class MemoryBlockStorage implements BlockStorage {
+    private ConcurrentMap<String, Block> blockMap;
+
+    MemoryBlockStorage() {
+        this.blockMap = new ConcurrentHashMap<>();
+    }
+
+    @Override
+    public void put(Block block) {
+        blockMap.putIfAbsent(block.getHash(), block);
+    }
+
+    @Override
+    public Block get(String hash) {
+        return blockMap.get(hash);
+    }
+
+    @Override
+    public boolean contains(String hash) {
+        return blockMap.containsKey(hash);
+    }
+
+    @Override
+    public boolean delete(String hash) {
+        return blockMap.remove(hash) != null;
+    }
+
+    // Nothing survives a restart anyway
+    @Override
+    public void sync() {
+    }
+
+    @Override
+    public void close() {
+    }
+}
@@ -0,0 +1,144 @@
+package surfstore;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.logging.Logger;
+
+import io.grpc.ManagedChannel;
+import io.grpc.ManagedChannelBuilder;
+import io.grpc.StatusRuntimeException;
+
+import surfstore.SurfStoreBasic.Empty;
+import surfstore.SurfStoreBasic.FileInfo;
+
+/*
+ * The client's view of one replicated group of metadata servers. Calls go to
+ * the server we think leads the group. When it can't be reached or says it
+ * doesn't lead anymore, the servers are asked in turn until the one that took
+ * over is found.
+ */
+class MetadataGroup {
+    private static final Logger logger = Logger.getLogger(MetadataGroup.class.getName());
+
+    // How long to keep looking for a leader after losing it, and the time limits of calls to
+    // the leader and of asking a server whether it leads
+    private static final long LEADER_WAIT_MS = 5000;
+    private static final long CALL_TIMEOUT_MS = 5000;
+    private static final long PROBE_TIMEOUT_MS = 300;
+
+    // servers[i] is the number of the server behind stubs[i], stubs[leader] is the one we
+    // think leads
+    private final int[] servers;
+    private final ManagedChannel[] channels;
+    private final MetadataStoreGrpc.MetadataStoreBlockingStub[] stubs;
+    private volatile int leader;
+
+    MetadataGroup(ConfigReader config, int group) {
+        List<Integer> members = config.getGroupMembers(group);
+        this.servers = new int[members.size()];
+        this.channels = new ManagedChannel[members.size()];
+        this.stubs = new MetadataStoreGrpc.MetadataStoreBlockingStub[members.size()];
+        for (int i = 0; i < servers.length; i++) {
+            servers[i] = members.get(i);
+            channels[i] = ManagedChannelBuilder.forAddress("127.0.0.1", config.getMetadataPort(servers[i]))
+                    .usePlaintext(true).build();
+            stubs[i] = MetadataStoreGrpc.newBlockingStub(channels[i]);
+            if (servers[i] == config.getLeaderNum(group)) {
+                leader = i;
+            }
+        }
+    }
+
+    void shutdown() throws InterruptedException {
+        for (ManagedChannel channel : channels) {
+            channel.shutdown().awaitTermination(5, TimeUnit.SECONDS);
+        }
+    }
+
+    // With anyServer, pick any server of the group and fall back to the leader if a follower
+    // refuses because it lost touch with the leader
+    FileInfo readFile(FileInfo request, boolean anyServer) {
+        if (anyServer) {
+            int server = ThreadLocalRandom.current().nextInt(stubs.length);
+            if (server != leader) {
+                try {
+                    return stubs[server].readFile(request);
+                } catch (StatusRuntimeException e) {
+                    logger.fine("Follower read failed: " + e.getMessage());
+                }
+            }
+        }
+        return onLeader(stub -> stub.readFile(request), response -> false);
+    }
+
+    // The version on the leader first, then on the other servers, "unavailable" for servers
+    // that can't be reached
+    List<String> versions(FileInfo request) {
+        findLeader(leader, System.currentTimeMillis() + LEADER_WAIT_MS);
+        List<String> versions = new ArrayList<>();
+        versions.add(String.valueOf(onLeader(stub -> stub.getVersion(request), response -> false).getVersion()));
+
+        for (int i = 0; i < stubs.length; i++) {
+            if (i != leader) {
+                try {
+                    versions.add(String.valueOf(stubs[i].withDeadlineAfter(PROBE_TIMEOUT_MS, TimeUnit.MILLISECONDS)
+                            .getVersion(request).getVersion()));
+                } catch (StatusRuntimeException e) {
+                    versions.add("unavailable");
+                }
+            }
+        }
+        return versions;
+    }
+
+    // Run the call on the leader. If it can't be reached or says it is not the leader anymore,
+    // look for the one that took over and try again, for up to LEADER_WAIT_MS.
+    <T> T onLeader(Function<MetadataStoreGrpc.MetadataStoreBlockingStub, T> call, Predicate<T> notLeader) {
+        long deadline = System.currentTimeMillis() + LEADER_WAIT_MS;
+        while (true) {
+            int tried = leader;
+            try {
+                T result = call.apply(stubs[tried].withDeadlineAfter(CALL_TIMEOUT_MS, TimeUnit.MILLISECONDS));
+                if (!notLeader.test(result) || System.currentTimeMillis() >= deadline) {
+                    return result;
+                }
+            } catch (StatusRuntimeException e) {
+                if (System.currentTimeMillis() >= deadline) {
+                    throw e;
+                }
+                logger.fine("Metadata server " + servers[tried] + " failed: " + e.getMessage());
+            }
+            findLeader(tried + 1, deadline);
+        }
+    }
+
+    // Ask the servers in turn whether they lead, starting with first, until one does
+    private void findLeader(int first, long deadline) {
+        Empty empty = Empty.newBuilder().build();
+        while (System.currentTimeMillis() < deadline) {
+            for (int k = 0; k < stubs.length; k++) {
+                int i = (first + k) % stubs.length;
+                try {
+                    if (stubs[i].withDeadlineAfter(PROBE_TIMEOUT_MS, TimeUnit.MILLISECONDS).isLeader(empty)
+                            .getAnswer()) {
+                        leader = i;
+                        return;
+                    }
+                } catch (StatusRuntimeException e) {
+                    logger.fine("Metadata server " + servers[i] + " is unreachable: " + e.getMessage());
+                }
+            }
+
+            try {
+                Thread.sleep(100);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+}
@@ -0,0 +1,493 @@
+package surfstore;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+import surfstore.SurfStoreBasic.LogEntry;
+import surfstore.SurfStoreBasic.Snapshot;
+
+/*
+ * The replicated log of a metadata server. Entries live in memory starting
+ * at firstIndex(), everything before that is covered by the last snapshot.
+ * With a data directory, entries are made durable through persist() in
+ * write-ahead log files named after their first index, with records laid
+ * out as
+ *   [length][crc32][LogEntry]
+ * Threads that persist at the same time share one fsync. Uncommitted entries
+ * can be replaced by a new leader, the replacements are appended as well and
+ * a record with an index at or below an earlier one cuts the log there on
+ * replay. A snapshot starts a new WAL file and then deletes the files and
+ * snapshots it covers, so a restart loads the latest snapshot and only
+ * replays the WAL written since. Entries covered by a snapshot can also be
+ * compacted away in memory. The current term and vote are kept in STATE_FILE.
+ */
+class MetadataLog implements Closeable {
+    private static final Logger logger = Logger.getLogger(MetadataLog.class.getName());
+
+    private static final int HEADER_SIZE = 8;
+    private static final int MAX_ENTRY_SIZE = 64 * 1024 * 1024;
+    private static final String WAL_PREFIX = "wal-";
+    private static final String SNAPSHOT_PREFIX = "snapshot-";
+    private static final String STATE_FILE = "state";
+    private static final String LAYOUT_FILE = "layout";
+
+    private final File dir;
+    private final List<LogEntry> entries;
+    private int firstIndex;
+    // Term of the entry before firstIndex
+    private int lastTerm;
+    private Snapshot snapshot;
+
+    private int currentTerm;
+    private int votedFor;
+
+    private FileChannel wal;
+    // Entries below writtenIndex are in the WAL, the ones below durableIndex also went through
+    // an fsync. Truncations counts truncateFrom calls, an fsync only makes entries durable if
+    // none of them were replaced since they were written.
+    private int writtenIndex;
+    private int durableIndex;
+    private int truncations;
+    private long written;
+
+    // Lock order is syncLock, then this
+    private final Object syncLock = new Object();
+    private long synced;
+
+    // Keeps the log in memory only
+    MetadataLog() {
+        this.dir = null;
+        this.entries = new ArrayList<>();
+    }
+
+    MetadataLog(File dir) throws IOException {
+        this.dir = dir;
+        this.entries = new ArrayList<>();
+
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Cannot create data directory " + dir);
+        }
+
+        recover();
+    }
+
+    private void recover() throws IOException {
+        long start = System.currentTimeMillis();
+
+        List<Integer> snapshots = listFiles(SNAPSHOT_PREFIX);
+        for (int i = snapshots.size() - 1; i >= 0 && snapshot == null; i--) {
+            File f = file(SNAPSHOT_PREFIX, snapshots.get(i));
+            try (InputStream in = new BufferedInputStream(new FileInputStream(f))) {
+                snapshot = Snapshot.parseFrom(in);
+            } catch (IOException e) {
+                logger.warning("Skipping unreadable snapshot " + f);
+            }
+        }
+        firstIndex = snapshot == null ? 0 : snapshot.getLastIndex() + 1;
+        lastTerm = snapshot == null ? 0 : snapshot.getLastTerm();
+
+        File state = new File(dir, STATE_FILE);
+        if (state.exists()) {
+            try (DataInputStream in = new DataInputStream(new FileInputStream(state))) {
+                currentTerm = in.readInt();
+                votedFor = in.readInt();
+            }
+        }
+
+        List<Integer> wals = listFiles(WAL_PREFIX);
+        for (int i = 0; i < wals.size(); i++) {
+            replay(wals.get(i), i == wals.size() - 1);
+        }
+
+        writtenIndex = size();
+        durableIndex = writtenIndex;
+        wal = openWal(writtenIndex);
+
+        logger.info(String.format("Recovered snapshot up to %d and %d log entries in term %d in %d ms",
+                firstIndex - 1, entries.size(), currentTerm, System.currentTimeMillis() - start));
+    }
+
+    private List<Integer> listFiles(String prefix) {
+        List<Integer> ids = new ArrayList<>();
+        File[] files = dir.listFiles((d, name) -> name.startsWith(prefix));
+
+        if (files != null) {
+            for (File f : files) {
+                try {
+                    ids.add(Integer.parseInt(f.getName().substring(prefix.length())));
+                } catch (NumberFormatException e) {
+                    logger.warning("Skipping unknown file " + f);
+                }
+            }
+        }
+        Collections.sort(ids);
+        return ids;
+    }
+
+    private File file(String prefix, int index) {
+        return new File(dir, String.format("%s%010d", prefix, index));
+    }
+
+    private void replay(int id, boolean last) throws IOException {
+        try (FileChannel channel = FileChannel.open(file(WAL_PREFIX, id).toPath(), StandardOpenOption.READ,
+                StandardOpenOption.WRITE)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            CRC32 crc = new CRC32();
+            long pos = 0;
+
+            while (true) {
+                header.clear();
+                if (readFully(channel, header, pos) < HEADER_SIZE) {
+                    break;
+                }
+                int length = header.getInt(0);
+                if (length < 0 || length > MAX_ENTRY_SIZE) {
+                    break;
+                }
+
+                ByteBuffer data = ByteBuffer.allocate(length);
+                if (readFully(channel, data, pos + HEADER_SIZE) < length) {
+                    break;
+                }
+                crc.reset();
+                crc.update(data.array(), 0, length);
+                if ((int) crc.getValue() != header.getInt(4)) {
+                    break;
+                }
+
+                LogEntry entry = LogEntry.parseFrom(data.array());
+                if (entry.getIndex() > size()) {
+                    throw new IOException("Log entry " + size() + " is missing from " + dir);
+                } else if (entry.getIndex() >= firstIndex) {
+                    // A rewritten entry replaces everything from its index on
+                    entries.subList(entry.getIndex() - firstIndex, entries.size()).clear();
+                    entries.add(entry);
+                }
+                pos += HEADER_SIZE + length;
+            }
+
+            // Drop a partially written record at the tail
+            if (channel.size() > pos) {
+                if (!last) {
+                    throw new IOException("Corrupted log file " + file(WAL_PREFIX, id));
+                }
+                logger.warning(String.format("Truncating log file %d from %d to %d bytes", id, channel.size(), pos));
+                channel.truncate(pos);
+            }
+        }
+    }
+
+    private static int readFully(FileChannel channel, ByteBuffer buf, long pos) throws IOException {
+        while (buf.hasRemaining()) {
+            if (channel.read(buf, pos + buf.position()) < 0) {
+                break;
+            }
+        }
+        return buf.position();
+    }
+
+    private FileChannel openWal(int index) throws IOException {
+        FileChannel channel = FileChannel.open(file(WAL_PREFIX, index).toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE);
+        channel.position(channel.size());
+        return channel;
+    }
+
+    boolean isPersistent() {
+        return dir != null;
+    }
+
+    // Snapshot the log was recovered from, null if there was none. Only handed out once,
+    // the log itself has no use for it after recovery.
+    synchronized Snapshot takeRecoveredSnapshot() {
+        Snapshot recovered = snapshot;
+        snapshot = null;
+        return recovered;
+    }
+
+    synchronized int firstIndex() {
+        return firstIndex;
+    }
+
+    // Index the next entry will get
+    synchronized int size() {
+        return firstIndex + entries.size();
+    }
+
+    // Entries below this index are on disk and fsynced
+    synchronized int durableSize() {
+        return durableIndex;
+    }
+
+    synchronized LogEntry get(int index) {
+        return entries.get(index - firstIndex);
+    }
+
+    // Term of the entry at index, which can be the last one covered by the snapshot.
+    // Index -1 stands for the empty log and has term 0.
+    synchronized int termAt(int index) {
+        if (index == firstIndex - 1) {
+            return lastTerm;
+        }
+        if (index < firstIndex) {
+            throw new IllegalArgumentException("Entry " + index + " was compacted");
+        }
+        return entries.get(index - firstIndex).getTerm();
+    }
+
+    synchronized int lastTerm() {
+        return termAt(size() - 1);
+    }
+
+    // Entries in [index, end), stopping once maxBytes are collected but with at least one entry.
+    // Returns null if the entry at index was already compacted into a snapshot.
+    synchronized List<LogEntry> entriesFrom(int index, int end, int maxBytes) {
+        if (index < firstIndex) {
+            return null;
+        }
+
+        List<LogEntry> batch = new ArrayList<>();
+        int bytes = 0;
+        int last = Math.min(end, size()) - firstIndex;
+        for (int i = index - firstIndex; i < last && (batch.isEmpty() || bytes < maxBytes); i++) {
+            LogEntry entry = entries.get(i);
+            bytes += entry.getSerializedSize();
+            batch.add(entry);
+        }
+        return batch;
+    }
+
+    synchronized void add(LogEntry entry) {
+        if (entry.getIndex() != size()) {
+            throw new IllegalArgumentException("Expected entry " + size() + ", got " + entry.getIndex());
+        }
+        entries.add(entry);
+    }
+
+    // Drop the uncommitted entries from index on. Their replacements are persisted after the
+    // records of the dropped ones, which makes replay drop them as well.
+    synchronized void truncateFrom(int index) {
+        if (index < firstIndex) {
+            throw new IllegalArgumentException("Entry " + index + " was compacted");
+        }
+        entries.subList(index - firstIndex, entries.size()).clear();
+        writtenIndex = Math.min(writtenIndex, index);
+        durableIndex = Math.min(durableIndex, index);
+        truncations++;
+    }
+
+    // Make every entry below upTo durable, returns once they are on disk
+    void persist(int upTo) throws IOException {
+        if (dir == null) {
+            synchronized (this) {
+                writtenIndex = Math.max(writtenIndex, Math.min(upTo, size()));
+                durableIndex = writtenIndex;
+            }
+            return;
+        }
+
+        long position;
+        int writtenUpTo;
+        int epoch;
+        synchronized (this) {
+            upTo = Math.min(upTo, size());
+            for (int i = writtenIndex; i < upTo; i++) {
+                byte[] data = get(i).toByteArray();
+                CRC32 crc = new CRC32();
+                crc.update(data);
+
+                ByteBuffer record = ByteBuffer.allocate(HEADER_SIZE + data.length);
+                record.putInt(data.length).putInt((int) crc.getValue()).put(data).flip();
+                while (record.hasRemaining()) {
+                    wal.write(record);
+                }
+                written += HEADER_SIZE + data.length;
+            }
+            writtenIndex = Math.max(writtenIndex, upTo);
+            writtenUpTo = writtenIndex;
+            position = written;
+            epoch = truncations;
+        }
+
+        // Whoever gets here first syncs everything written so far, the others find their
+        // records already covered when they get the lock
+        synchronized (syncLock) {
+            if (synced < position) {
+                long target;
+                int targetIndex;
+                int targetEpoch;
+                FileChannel channel;
+                synchronized (this) {
+                    target = written;
+                    targetIndex = writtenIndex;
+                    targetEpoch = truncations;
+                    channel = wal;
+                }
+                channel.force(false);
+                synced = target;
+                markDurable(targetIndex, targetEpoch);
+            }
+        }
+        markDurable(writtenUpTo, epoch);
+    }
+
+    private synchronized void markDurable(int index, int epoch) {
+        if (epoch == truncations) {
+            durableIndex = Math.max(durableIndex, index);
+        }
+    }
+
+    // Drop entries up to and including index from memory, they have to be in a snapshot
+    synchronized void compact(int index) {
+        int end = Math.min(Math.min(index + 1, writtenIndex) - firstIndex, entries.size());
+        if (end > 0) {
+            lastTerm = entries.get(end - 1).getTerm();
+            entries.subList(0, end).clear();
+            firstIndex += end;
+        }
+    }
+
+    // Write a snapshot of the state after applying every entry up to its last index,
+    // then delete the log files and older snapshots it replaces
+    void saveSnapshot(Snapshot snap) throws IOException {
+        if (dir == null) {
+            return;
+        }
+
+        synchronized (syncLock) {
+            synchronized (this) {
+                if (writtenIndex <= snap.getLastIndex()) {
+                    throw new IllegalStateException("Snapshot at " + snap.getLastIndex() + " is ahead of the log");
+                }
+                rollWal();
+            }
+        }
+        writeSnapshot(snap);
+    }
+
+    // Replace the whole log with a snapshot received from the leader
+    void installSnapshot(Snapshot snap) throws IOException {
+        synchronized (syncLock) {
+            synchronized (this) {
+                entries.clear();
+                firstIndex = snap.getLastIndex() + 1;
+                lastTerm = snap.getLastTerm();
+                writtenIndex = firstIndex;
+                durableIndex = firstIndex;
+                truncations++;
+                if (dir != null) {
+                    rollWal();
+                }
+            }
+        }
+        if (dir != null) {
+            writeSnapshot(snap);
+        }
+    }
+
+    synchronized int currentTerm() {
+        return currentTerm;
+    }
+
+    // Server this one voted for in the current term, 0 if none
+    synchronized int votedFor() {
+        return votedFor;
+    }
+
+    // The log only holds the files of the group layout it was written under. Records the layout
+    // the first time, and refuses a different one later since files are not moved between groups.
+    void checkLayout(String layout) throws IOException {
+        if (dir == null) {
+            return;
+        }
+
+        Path path = new File(dir, LAYOUT_FILE).toPath();
+        if (!Files.exists(path)) {
+            Path tmp = path.resolveSibling(LAYOUT_FILE + ".tmp");
+            try (FileOutputStream out = new FileOutputStream(tmp.toFile())) {
+                out.write(layout.getBytes(StandardCharsets.UTF_8));
+                out.getFD().sync();
+            }
+            Files.move(tmp, path, StandardCopyOption.ATOMIC_MOVE);
+            return;
+        }
+
+        String saved = new String(Files.readAllBytes(path), StandardCharsets.UTF_8);
+        if (!saved.equals(layout)) {
+            throw new IOException("Log in " + dir + " was written as " + saved + ", the config now makes this "
+                    + layout + ". Files are not migrated between groups, start with an empty data directory.");
+        }
+    }
+
+    // Remember the term and vote before acting on them, a server must not vote twice in a
+    // term even across restarts
+    synchronized void saveVote(int term, int candidate) throws IOException {
+        if (dir != null && (term != currentTerm || candidate != votedFor)) {
+            Path path = new File(dir, STATE_FILE).toPath();
+            Path tmp = path.resolveSibling(STATE_FILE + ".tmp");
+            try (FileOutputStream out = new FileOutputStream(tmp.toFile());
+                 DataOutputStream data = new DataOutputStream(out)) {
+                data.writeInt(term);
+                data.writeInt(candidate);
+                data.flush();
+                out.getFD().sync();
+            }
+            Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        currentTerm = term;
+        votedFor = candidate;
+    }
+
+    // Called holding both locks, entries from writtenIndex on go to a new file
+    private void rollWal() throws IOException {
+        wal.force(false);
+        wal.close();
+        wal = openWal(writtenIndex);
+        synced = written;
+        durableIndex = writtenIndex;
+    }
+
+    private void writeSnapshot(Snapshot snap) throws IOException {
+        int lastIndex = snap.getLastIndex();
+        File f = file(SNAPSHOT_PREFIX, lastIndex);
+        File tmp = new File(dir, f.getName() + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(tmp)) {
+            snap.writeTo(out);
+            out.getFD().sync();
+        }
+        Files.move(tmp.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        for (int id : listFiles(SNAPSHOT_PREFIX)) {
+            if (id < lastIndex) {
+                Files.deleteIfExists(file(SNAPSHOT_PREFIX, id).toPath());
+            }
+        }
+
+        // A log file can go once the file after it starts at or before the entry after the snapshot
+        List<Integer> wals = listFiles(WAL_PREFIX);
+        for (int i = 0; i + 1 < wals.size() && wals.get(i + 1) <= lastIndex + 1; i++) {
+            Files.deleteIfExists(file(WAL_PREFIX, wals.get(i)).toPath());
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (syncLock) {
+            synchronized (this) {
+                if (wal != null) {
+                    wal.force(false);
+                    wal.close();
+                }
+            }
+        }
+    }
+}
@@ -3,28 +3,44 @@ package surfstore;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
 import java.util.concurrent.*;
+import java.util.function.BiFunction;
 import java.util.logging.Logger;
 
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import io.grpc.Context;
 import io.grpc.ManagedChannel;
 import io.grpc.ManagedChannelBuilder;
 import io.grpc.Server;
 import io.grpc.ServerBuilder;
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
 import io.grpc.stub.StreamObserver;
 import net.sourceforge.argparse4j.ArgumentParsers;
 import net.sourceforge.argparse4j.inf.ArgumentParser;
 import net.sourceforge.argparse4j.inf.ArgumentParserException;
 import net.sourceforge.argparse4j.inf.Namespace;
-import surfstore.SurfStoreBasic.Block;
 import surfstore.SurfStoreBasic.Empty;
 import surfstore.SurfStoreBasic.FileInfo;
+import surfstore.SurfStoreBasic.HashList;
 import surfstore.SurfStoreBasic.LogEntries;
 import surfstore.SurfStoreBasic.LogEntry;
 import surfstore.SurfStoreBasic.LogIndex;
 import surfstore.SurfStoreBasic.SimpleAnswer;
+import surfstore.SurfStoreBasic.Snapshot;
+import surfstore.SurfStoreBasic.VoteRequest;
+import surfstore.SurfStoreBasic.VoteResult;
 import surfstore.SurfStoreBasic.WriteResult;
 
 
@@ -38,9 +54,10 @@ public final class MetadataStore {
     	this.config = config;
 	}
 
-	private void start(int port, int servNum, int numThreads) throws IOException {
+	private void start(int port, int servNum, int numThreads, MetadataLog log, int snapshotEvery,
+                       long maxStalenessMs, int gcRate) throws IOException {
         server = ServerBuilder.forPort(port)
-                .addService(new MetadataStoreImpl(config, servNum))
+                .addService(new MetadataStoreImpl(config, servNum, log, snapshotEvery, maxStalenessMs, gcRate))
                 .executor(Executors.newFixedThreadPool(numThreads))
                 .build()
                 .start();
@@ -76,6 +93,14 @@ public final class MetadataStore {
                 .help("Set which number this server is");
         parser.addArgument("-t", "--threads").type(Integer.class).setDefault(10)
                 .help("Maximum number of concurrent threads");
+        parser.addArgument("-d", "--data_dir").type(String.class)
+                .help("Directory for the write-ahead log and snapshots, the log is kept in memory if not set");
+        parser.addArgument("--snapshot_every").type(Integer.class).setDefault(10000)
+                .help("Number of applied log entries after which a snapshot is written");
+        parser.addArgument("--max_staleness").type(Long.class).setDefault(2000L)
+                .help("Followers only serve ReadFile if they heard from the leader within this many milliseconds");
+        parser.addArgument("--gc_rate").type(Integer.class).setDefault(500)
+                .help("Maximum number of unreferenced blocks deleted per second, 0 turns garbage collection off");
 
         Namespace res = null;
         try {
@@ -101,55 +126,208 @@ public final class MetadataStore {
             throw new RuntimeException(String.format("metadata%d not in config file", c_args.getInt("number")));
         }
 
+        MetadataLog log;
+        if (c_args.getString("data_dir") != null) {
+            log = new MetadataLog(new File(c_args.getString("data_dir")));
+        } else {
+            log = new MetadataLog();
+        }
+        int group = config.getGroup(servNum);
+        log.checkLayout(String.format("group %d of %d with servers %s", group, config.getNumGroups(),
+                config.getGroupMembers(group)));
+
         final MetadataStore server = new MetadataStore(config);
-        server.start(config.getMetadataPort(servNum), servNum, c_args.getInt("threads"));
+        server.start(config.getMetadataPort(servNum), servNum, c_args.getInt("threads"), log,
+                c_args.getInt("snapshot_every"), c_args.getLong("max_staleness"), c_args.getInt("gc_rate"));
         server.blockUntilShutdown();
     }
 
     static class MetadataStoreImpl extends MetadataStoreGrpc.MetadataStoreImplBase {
+        // Max number of hashes sent in a single HasBlocks call
+        private static final int HAS_BLOCKS_BATCH = 8192;
+        // Size limits of an AppendEntries call and of a part of an InstallSnapshot stream,
+        // well below the 4MB gRPC message limit
+        private static final int MAX_APPEND_BYTES = 1024 * 1024;
+        private static final int SNAPSHOT_CHUNK_BYTES = 1024 * 1024;
+        // AppendEntries calls that may be waiting for a follower at the same time
+        private static final int MAX_IN_FLIGHT = 4;
+        // Calls to followers that take longer than this count as failed
+        private static final long APPEND_TIMEOUT_MS = 2000;
+        private static final long SNAPSHOT_TIMEOUT_MS = 30000;
+        // How long a write waits for a majority before answering ABORT
+        private static final long COMMIT_TIMEOUT_MS = 1000;
+        // The leader sends an empty heartbeat to followers it sent nothing else for heartbeatMs.
+        // That starts at HEARTBEAT_MS and doubles while nothing is written, up to
+        // IDLE_HEARTBEAT_MS. A follower that hears nothing for a random time between one and two
+        // ELECTION_TIMEOUT_MS starts an election.
+        private static final long HEARTBEAT_MS = 50;
+        private static final long IDLE_HEARTBEAT_MS = 150;
+        private static final long ELECTION_TIMEOUT_MS = 500;
+        private static final long VOTE_TIMEOUT_MS = 300;
+        // Writes to files that hash to different stripes never wait for each other
+        private static final int FILE_LOCK_STRIPES = 256;
+        // The leader collects garbage every GC_INTERVAL_MS, blocks are only collected once they
+        // have been unreferenced for GC_GRACE_MS. Followers forget about unreferenced blocks
+        // after FORGET_ORPHANS_MS, by then the leader took care of them.
+        private static final long GC_INTERVAL_MS = 1000;
+        private static final long GC_GRACE_MS = 5000;
+        private static final long GC_CALL_TIMEOUT_MS = 5000;
+        private static final long FORGET_ORPHANS_MS = 60000;
+
+        // The servers of our group replicate our share of the files between them, other groups
+        // keep the rest. numMetaServer counts the servers of our group.
+        private ConfigReader config;
+        private int group;
         private int numMetaServer;
-        private boolean isLeader;
+        private int servNum;
+        private volatile boolean isLeader;
         private volatile boolean crashed;
-        private Map<String, Integer> versionMap;
-        private Map<String, List<String>> blockListMap;
 
+        // Raft terms. The term and vote are persisted before they are acted on. Before raising
+        // the term a server asks the others whether they would vote for it, counting the answers
+        // of pre-vote round preVoteRound in preVotes, so a server that only lost touch with a
+        // healthy leader can't depose it with a higher term. A candidate counts its votes in
+        // votes. Both are 0 for followers and leaders.
+        private int currentTerm;
+        private int votedFor;
+        private volatile int leaderNum;
+        private int preVoteRound;
+        private int preVotes;
+        private int votes;
+        private long electionDeadline;
+
+        // Committed state, readers go straight to it without locking. Writers check versions
+        // and blocks under the lock of the file, the instance lock only orders the log and
+        // applying it. Lock order is file lock, then this.
+        private Map<String, FileInfo> files;
+        private Map<String, Integer> proposedVersions;
+        private Object[] fileLocks;
+
+        // Entries below commitIndex are committed. On the leader, follower i shares the first
+        // matchIndex[i] entries and is sent entries from sentIndex[i] on, with inFlight[i] calls
+        // outstanding. The last call to it left at lastSent[i] and told it sentCommit[i] entries
+        // are committed. Followers that didn't answer the last call are left to the heartbeat.
         private int lastApplied;
-        private int[] nextIndex;
-        private List<LogEntry> logs;
-
-        private BlockStoreGrpc.BlockStoreBlockingStub blockStub;
-        private MetadataStoreGrpc.MetadataStoreBlockingStub[] metaStubs;
+        private int commitIndex;
+        private int[] matchIndex;
+        private int[] sentIndex;
+        private boolean[] reachable;
+        private int[] inFlight;
+        private long[] lastSent;
+        private int[] sentCommit;
+        private long heartbeatMs;
+        private int heartbeatLogSize;
+
+        // Followers serve reads from their applied state while they have heard from the leader
+        // within maxStalenessMs. That state is about a round trip behind the commit index of the
+        // leader.
+        private long maxStalenessMs;
+        private volatile long lastContact;
+        private TreeMap<Integer, List<CompletableFuture<Boolean>>> commitWaiters;
+        private MetadataLog log;
+
+        private int snapshotEvery;
+        private int snapshotIndex;
+        private boolean snapshotting;
+        private ExecutorService snapshotExecutor;
+
+        // blockStubs[i] talks to block server i + 1
+        private BlockStoreGrpc.BlockStoreFutureStub[] blockStubs;
+
+        // References to blocks from the applied state. Blocks that lost their last one are
+        // deleted from the block servers, up to gcRate a second, once the other groups agree
+        // they don't refer to them either.
+        private BlockRefs blockRefs;
+        private int gcRate;
+        private MetadataGroup[] otherGroups;
+        private ScheduledExecutorService gcExecutor;
+        private String lastStats;
+        // Every other server, peers[i] is the number of the one behind metaStubs[i]
+        private MetadataStoreGrpc.MetadataStoreStub[] metaStubs;
+        private int[] peers;
 
         ScheduledExecutorService daemonExecutor;
 
-        MetadataStoreImpl(ConfigReader config, int servNum) {
-            this.numMetaServer = config.getNumMetadataServers();
-            this.isLeader = servNum == config.getLeaderNum();
-            this.versionMap = new HashMap<>();
-            this.blockListMap = new HashMap<>();
-            this.lastApplied = -1;
-            this.nextIndex = new int[numMetaServer - 1];
-            this.logs = new ArrayList<>();
+        MetadataStoreImpl(ConfigReader config, int servNum, MetadataLog log, int snapshotEvery,
+                          long maxStalenessMs, int gcRate) {
+            this.config = config;
+            this.group = config.getGroup(servNum);
+            this.numMetaServer = config.getGroupSize();
+            this.servNum = servNum;
+            this.files = new ConcurrentHashMap<>();
+            this.proposedVersions = new ConcurrentHashMap<>();
+            this.fileLocks = new Object[FILE_LOCK_STRIPES];
+            for (int i = 0; i < fileLocks.length; i++) {
+                fileLocks[i] = new Object();
+            }
+            this.log = log;
+            this.snapshotEvery = snapshotEvery;
+            this.maxStalenessMs = maxStalenessMs;
             this.daemonExecutor = Executors.newSingleThreadScheduledExecutor();
+            this.snapshotExecutor = Executors.newSingleThreadExecutor();
+            this.blockRefs = new BlockRefs();
+            this.gcRate = gcRate;
+            this.gcExecutor = Executors.newSingleThreadScheduledExecutor();
+
+            // Rebuild the state from the last snapshot plus the log written after it
+            Snapshot snapshot = log.takeRecoveredSnapshot();
+            if (snapshot != null) {
+                for (FileInfo file : snapshot.getFilesList()) {
+                    files.put(file.getFilename(), file);
+                    blockRefs.add(file.getBlocklistList());
+                }
+            }
+            this.lastApplied = log.firstIndex() - 1;
+            this.snapshotIndex = lastApplied;
+
+            // Entries after the snapshot may not be committed, they are applied once a leader
+            // says so
+            this.commitIndex = log.firstIndex();
+            this.currentTerm = log.currentTerm();
+            this.votedFor = log.votedFor();
+
+            this.matchIndex = new int[numMetaServer - 1];
+            this.sentIndex = new int[numMetaServer - 1];
+            this.reachable = new boolean[numMetaServer - 1];
+            this.inFlight = new int[numMetaServer - 1];
+            this.lastSent = new long[numMetaServer - 1];
+            this.sentCommit = new int[numMetaServer - 1];
+            this.commitWaiters = new TreeMap<>();
+
+            this.blockStubs = new BlockStoreGrpc.BlockStoreFutureStub[config.getNumBlockServers()];
+            for (int i = 0; i < blockStubs.length; i++) {
+                ManagedChannel bChannel = ManagedChannelBuilder.forAddress("127.0.0.1",
+                        config.getBlockPort(i + 1)).usePlaintext(true).build();
+                this.blockStubs[i] = BlockStoreGrpc.newFutureStub(bChannel);
+            }
 
-            ManagedChannel bChannel = ManagedChannelBuilder.forAddress("127.0.0.1",
-                    config.getBlockPort()).usePlaintext(true).build();
-            this.blockStub = BlockStoreGrpc.newBlockingStub(bChannel);
-
-            if (isLeader) {
-                this.metaStubs = new MetadataStoreGrpc.MetadataStoreBlockingStub[numMetaServer - 1];
-                for (int i = 1, j = 0; i <= numMetaServer; i++) {
-                    if (i != servNum) {
-                        ManagedChannel mChannel = ManagedChannelBuilder.forAddress("127.0.0.1",
-                                config.getMetadataPort(i)).usePlaintext(true).build();
-                        this.metaStubs[j++] = MetadataStoreGrpc.newBlockingStub(mChannel);
-                    }
+            this.otherGroups = new MetadataGroup[config.getNumGroups() - 1];
+            for (int g = 1, k = 0; g <= config.getNumGroups(); g++) {
+                if (g != group) {
+                    this.otherGroups[k++] = new MetadataGroup(config, g);
                 }
+            }
 
-                if (numMetaServer > 1) {
-                    startAppendEntries();
+            this.metaStubs = new MetadataStoreGrpc.MetadataStoreStub[numMetaServer - 1];
+            this.peers = new int[numMetaServer - 1];
+            int j = 0;
+            for (int i : config.getGroupMembers(group)) {
+                if (i != servNum) {
+                    ManagedChannel mChannel = ManagedChannelBuilder.forAddress("127.0.0.1",
+                            config.getMetadataPort(i)).usePlaintext(true).build();
+                    this.metaStubs[j] = MetadataStoreGrpc.newStub(mChannel);
+                    this.peers[j++] = i;
                 }
             }
+
+            // The server the config names as leader goes first, so it normally ends up leading
+            if (servNum == config.getLeaderNum(group)) {
+                this.electionDeadline = System.currentTimeMillis();
+            } else {
+                resetElectionDeadline();
+            }
+            startTimer();
+            startCollector();
         }
 
         @Override
@@ -166,22 +344,21 @@ public final class MetadataStore {
                 return;
             }
 
-            FileInfo.Builder builder = FileInfo.newBuilder();
-            builder.setFilename(request.getFilename());
+            if (!ownsFile(request.getFilename())) {
+                responseObserver.onError(new RuntimeException("File belongs to another metadata group"));
+                return;
+            }
 
-            synchronized (this) {
-                Integer version = versionMap.get(request.getFilename());
-                List<String> blockList = blockListMap.get(request.getFilename());
+            if (!isLeader && System.currentTimeMillis() - lastContact > maxStalenessMs) {
+                responseObserver.onError(new RuntimeException("Follower is out of date"));
+                return;
+            }
 
-                if (version != null) {
-                    builder.setVersion(version);
-                }
-                if (blockList != null) {
-                    builder.addAllBlocklist(blockList);
-                }
+            FileInfo response = files.get(request.getFilename());
+            if (response == null) {
+                response = FileInfo.newBuilder().setFilename(request.getFilename()).build();
             }
 
-            FileInfo response = builder.build();
             responseObserver.onNext(response);
             responseObserver.onCompleted();
         }
@@ -193,10 +370,16 @@ public final class MetadataStore {
                 return;
             }
 
+            if (!ownsFile(request.getFilename())) {
+                responseObserver.onError(new RuntimeException("File belongs to another metadata group"));
+                return;
+            }
+
             WriteResult.Builder builder = WriteResult.newBuilder();
             String filename = request.getFilename();
             int cVersion = request.getVersion();
             int sVersion;
+            LogEntry entry = null;
 
             if (!isLeader) {
                 builder.setResult(WriteResult.Result.NOT_LEADER);
@@ -205,45 +388,66 @@ public final class MetadataStore {
                 return;
             }
 
-            synchronized (this) {
-                sVersion = versionMap.getOrDefault(filename, 0);
-                // Check if client version == server version + 1
-                if (cVersion != sVersion + 1) {
-                    builder.setResult(WriteResult.Result.OLD_VERSION).setCurrentVersion(sVersion);
-                    responseObserver.onNext(builder.build());
-                    responseObserver.onCompleted();
-                    return;
-                }
+            // From before we check for the blocks until the write is applied or given up, the
+            // garbage collector must not delete them
+            blockRefs.pin(request.getBlocklistList());
+            try {
+                synchronized (fileLock(filename)) {
+                    sVersion = proposedVersion(filename);
+                    // Check if client version == server version + 1
+                    if (cVersion != sVersion + 1) {
+                        builder.setResult(WriteResult.Result.OLD_VERSION).setCurrentVersion(sVersion);
+                        responseObserver.onNext(builder.build());
+                        responseObserver.onCompleted();
+                        return;
+                    }
 
-                // Get missing blocks from block store
-                List<String> missingBlocks = new ArrayList<>();
-                for (String hash : request.getBlocklistList()) {
-                    Block block = SurfStoreBasic.Block.newBuilder().setHash(hash).build();
-                    if (!blockStub.hasBlock(block).getAnswer()) {
-                        missingBlocks.add(hash);
+                    // Get missing blocks from block store. All of them are checked, a block the
+                    // committed version refers to is gone too if a block server lost it.
+                    List<String> missingBlocks;
+                    try {
+                        missingBlocks = findMissingBlocks(request.getBlocklistList());
+                    } catch (StatusRuntimeException e) {
+                        logger.warning("ModifyFile of " + filename + " failed: " + e.getMessage());
+                        responseObserver.onError(e);
+                        return;
                     }
-                }
 
-                // Client needs to store missing blocks to block store
-                if (!missingBlocks.isEmpty()) {
-                    builder.setResult(WriteResult.Result.MISSING_BLOCKS).setCurrentVersion(sVersion)
-                            .addAllMissingBlocks(missingBlocks);
-                    responseObserver.onNext(builder.build());
-                    responseObserver.onCompleted();
-                    return;
+                    // Client needs to store missing blocks to block store
+                    if (!missingBlocks.isEmpty()) {
+                        builder.setResult(WriteResult.Result.MISSING_BLOCKS).setCurrentVersion(sVersion)
+                                .addAllMissingBlocks(missingBlocks);
+                        responseObserver.onNext(builder.build());
+                        responseObserver.onCompleted();
+                        return;
+                    }
+
+                    entry = appendEntry(LogEntry.Command.MODIFY, request);
                 }
+            } finally {
+                if (entry == null) {
+                    blockRefs.unpin(request.getBlocklistList());
+                }
+            }
+
+            if (entry == null) {
+                builder.setResult(WriteResult.Result.NOT_LEADER);
+                responseObserver.onNext(builder.build());
+                responseObserver.onCompleted();
+                return;
+            }
 
-                // Start two phase commit
-                if (twoPhaseCommit(LogEntry.Command.MODIFY, request)) {
-                    applyModify(request);
+            commit(entry).thenAccept(committed -> {
+                blockRefs.unpin(request.getBlocklistList());
+                if (committed) {
                     builder.setResult(WriteResult.Result.OK).setCurrentVersion(cVersion);
                 } else {
-                    builder.setResult(WriteResult.Result.ABORT).setCurrentVersion(sVersion);
+                    builder.setResult(WriteResult.Result.UNKNOWN).setCurrentVersion(committedVersion(filename));
                 }
 
                 responseObserver.onNext(builder.build());
                 responseObserver.onCompleted();
-            }
+            });
         }
 
         @Override
@@ -253,10 +457,16 @@ public final class MetadataStore {
                 return;
             }
 
+            if (!ownsFile(request.getFilename())) {
+                responseObserver.onError(new RuntimeException("File belongs to another metadata group"));
+                return;
+            }
+
             WriteResult.Builder builder = WriteResult.newBuilder();
             String filename = request.getFilename();
             int cVersion = request.getVersion();
             int sVersion;
+            LogEntry entry;
 
             if (!isLeader) {
                 builder.setResult(WriteResult.Result.NOT_LEADER);
@@ -265,8 +475,8 @@ public final class MetadataStore {
                 return;
             }
 
-            synchronized (this) {
-                sVersion = versionMap.getOrDefault(filename, 0);
+            synchronized (fileLock(filename)) {
+                sVersion = proposedVersion(filename);
                 if (sVersion == 0 || cVersion != sVersion + 1) {
                     builder.setResult(WriteResult.Result.OLD_VERSION).setCurrentVersion(sVersion);
                     responseObserver.onNext(builder.build());
@@ -274,159 +484,980 @@ public final class MetadataStore {
                     return;
                 }
 
-                // Start two phase commit
-                if (twoPhaseCommit(LogEntry.Command.DELETE, request)) {
-                    applyDelete(request);
+                entry = appendEntry(LogEntry.Command.DELETE, request);
+            }
+
+            if (entry == null) {
+                builder.setResult(WriteResult.Result.NOT_LEADER);
+                responseObserver.onNext(builder.build());
+                responseObserver.onCompleted();
+                return;
+            }
+
+            commit(entry).thenAccept(committed -> {
+                if (committed) {
                     builder.setResult(WriteResult.Result.OK).setCurrentVersion(cVersion);
                 } else {
-                    builder.setResult(WriteResult.Result.ABORT).setCurrentVersion(sVersion);
+                    builder.setResult(WriteResult.Result.UNKNOWN).setCurrentVersion(committedVersion(filename));
                 }
 
                 responseObserver.onNext(builder.build());
                 responseObserver.onCompleted();
+            });
+        }
+
+        // A file written to the wrong group would never be found by clients that route it right
+        private boolean ownsFile(String filename) {
+            return config.getGroupForFile(filename) == group;
+        }
+
+        private Object fileLock(String filename) {
+            return fileLocks[(filename.hashCode() & 0x7fffffff) % fileLocks.length];
+        }
+
+        // Version the next write has to build on, including writes that are not committed yet.
+        // Applying an entry updates the file before dropping its proposed version, so the
+        // version never appears to go back.
+        private int proposedVersion(String filename) {
+            Integer version = proposedVersions.get(filename);
+            return version != null ? version : committedVersion(filename);
+        }
+
+        private int committedVersion(String filename) {
+            FileInfo file = files.get(filename);
+            return file != null ? file.getVersion() : 0;
+        }
+
+        // Called holding the lock of the file, returns null if we lost the leadership meanwhile
+        private synchronized LogEntry appendEntry(LogEntry.Command command, FileInfo request) {
+            if (!isLeader) {
+                return null;
+            }
+
+            LogEntry entry = LogEntry.newBuilder().setIndex(log.size()).setTerm(currentTerm).setCommand(command)
+                    .setRequest(request).build();
+            log.add(entry);
+            proposedVersions.put(request.getFilename(), request.getVersion());
+            return entry;
+        }
+
+        // Store the entry on a majority of the cluster, counting ourselves. Writers persist and
+        // replicate without holding the lock, so concurrent writes share fsyncs and calls. A
+        // writer that finds every follower busy leaves its entry to the next call, which starts
+        // as soon as a reply comes in. The result completes once the entry commits, without
+        // holding on to a server thread in the meantime, or with false after COMMIT_TIMEOUT_MS.
+        // The entry then stays in the log and still commits once enough followers answer, unless
+        // we lose the leadership first, which also fails the writers still waiting. Either way
+        // false doesn't mean the entry won't be applied, writers answer UNKNOWN rather than ABORT.
+        private CompletableFuture<Boolean> commit(LogEntry entry) {
+            int index = entry.getIndex();
+            try {
+                persistOrCrash(index + 1);
+            } catch (IOException e) {
+                return CompletableFuture.completedFuture(false);
+            }
+            replicate(false);
+
+            CompletableFuture<Boolean> result = new CompletableFuture<>();
+            synchronized (this) {
+                // Another leader may have replaced the entry since
+                if (!isLeader || currentTerm != entry.getTerm()) {
+                    return CompletableFuture.completedFuture(false);
+                }
+                advanceCommitIndex();
+                if (commitIndex > index) {
+                    return CompletableFuture.completedFuture(true);
+                }
+                commitWaiters.computeIfAbsent(index, k -> new ArrayList<>()).add(result);
+            }
+
+            daemonExecutor.schedule(() -> result.complete(false), COMMIT_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            return result;
+        }
+
+        // Commit everything a majority has stored and answer the writers waiting for it. Only an
+        // entry of the current term commits by being on a majority, earlier ones commit with it.
+        private void advanceCommitIndex() {
+            if (!isLeader) {
+                return;
+            }
+
+            int[] stored = new int[numMetaServer];
+            stored[0] = log.durableSize();
+            for (int i = 0; i < numMetaServer - 1; i++) {
+                stored[i + 1] = matchIndex[i];
+            }
+            Arrays.sort(stored);
+
+            int majorityStored = stored[(numMetaServer - 1) / 2];
+            if (majorityStored > commitIndex && log.termAt(majorityStored - 1) == currentTerm) {
+                commitIndex = majorityStored;
+                applyEntries(commitIndex);
+
+                SortedMap<Integer, List<CompletableFuture<Boolean>>> committed = commitWaiters.headMap(commitIndex);
+                for (List<CompletableFuture<Boolean>> waiters : committed.values()) {
+                    for (CompletableFuture<Boolean> waiter : waiters) {
+                        waiter.complete(true);
+                    }
+                }
+                committed.clear();
+            }
+        }
+
+        // A block is missing unless every block server that should keep a copy has it. The
+        // servers are asked in parallel. Writes need every copy, so a block server that can't be
+        // asked fails the check with UNAVAILABLE.
+        private List<String> findMissingBlocks(List<String> blockList) {
+            Set<String> hashes = new LinkedHashSet<>(blockList);
+            List<List<String>> byServer = new ArrayList<>();
+            for (int i = 0; i < blockStubs.length; i++) {
+                byServer.add(new ArrayList<>());
+            }
+            for (String hash : hashes) {
+                for (int server : config.getBlockServersFor(hash)) {
+                    byServer.get(server - 1).add(hash);
+                }
+            }
+
+            // callServers.get(c) is the block server calls.get(c) went to
+            List<ListenableFuture<HashList>> calls = new ArrayList<>();
+            List<Integer> callServers = new ArrayList<>();
+            for (int s = 0; s < blockStubs.length; s++) {
+                List<String> serverHashes = byServer.get(s);
+                for (int i = 0; i < serverHashes.size(); i += HAS_BLOCKS_BATCH) {
+                    List<String> batch = serverHashes.subList(i, Math.min(i + HAS_BLOCKS_BATCH, serverHashes.size()));
+                    calls.add(blockStubs[s].hasBlocks(HashList.newBuilder().addAllHashes(batch).build()));
+                    callServers.add(s + 1);
+                }
             }
+
+            Set<String> missing = new HashSet<>();
+            for (int c = 0; c < calls.size(); c++) {
+                try {
+                    missing.addAll(Futures.getUnchecked(calls.get(c)).getHashesList());
+                } catch (UncheckedExecutionException e) {
+                    throw Status.UNAVAILABLE.withDescription("Block server " + callServers.get(c)
+                            + " is unavailable: " + e.getCause().getMessage()).withCause(e.getCause())
+                            .asRuntimeException();
+                }
+            }
+
+            List<String> missingBlocks = new ArrayList<>();
+            for (String hash : hashes) {
+                if (missing.contains(hash)) {
+                    missingBlocks.add(hash);
+                }
+            }
+            return missingBlocks;
         }
 
         private void applyModify(FileInfo request) {
-            versionMap.put(request.getFilename(), request.getVersion());
-            blockListMap.put(request.getFilename(), request.getBlocklistList());
+            blockRefs.add(request.getBlocklistList());
+            FileInfo old = files.put(request.getFilename(), request);
+            if (old != null) {
+                blockRefs.remove(old.getBlocklistList());
+            }
+            proposedVersions.remove(request.getFilename(), request.getVersion());
             lastApplied++;
         }
 
         private void applyDelete(FileInfo request) {
-            versionMap.put(request.getFilename(), request.getVersion());
-            List<String> singleHashList = new ArrayList<>();
-            singleHashList.add("0");
-            blockListMap.put(request.getFilename(), singleHashList);
+            FileInfo old = files.put(request.getFilename(),
+                    request.toBuilder().clearBlocklist().addBlocklist("0").build());
+            if (old != null) {
+                blockRefs.remove(old.getBlocklistList());
+            }
+            proposedVersions.remove(request.getFilename(), request.getVersion());
             lastApplied++;
         }
 
-        private void applyEntries() {
-            int lastIndex = logs.get(logs.size() - 1).getIndex();
+        // The hashes that applied files refer to, writes in progress pinned, or entries that are
+        // not applied yet would refer to
+        private Set<String> referencedBlocks(Collection<String> hashes) {
+            Set<String> pending = new HashSet<>();
+            synchronized (this) {
+                for (int i = lastApplied + 1; i < log.size(); i++) {
+                    LogEntry entry = log.get(i);
+                    if (entry.getCommand() == LogEntry.Command.MODIFY) {
+                        pending.addAll(entry.getRequest().getBlocklistList());
+                    }
+                }
+            }
+
+            Set<String> referenced = new HashSet<>();
+            for (String hash : hashes) {
+                if (pending.contains(hash) || blockRefs.isReferenced(hash)) {
+                    referenced.add(hash);
+                }
+            }
+            return referenced;
+        }
+
+        private void startCollector() {
+            gcExecutor.scheduleWithFixedDelay(() -> {
+                // An exception would cancel the timer for good
+                try {
+                    collectGarbage();
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                }
+            }, GC_INTERVAL_MS, GC_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        }
+
+        // Blocks are condemned on their block servers first, which makes them look missing to
+        // writers from then on. Whatever a group still refers to after that is released, the
+        // rest is deleted. If anything fails, the blocks are released and tried again later.
+        private void collectGarbage() {
+            String stats = blockRefs.stats();
+            if (!stats.equals(lastStats)) {
+                logger.info(stats);
+                lastStats = stats;
+            }
+
+            if (crashed || !isLeader) {
+                blockRefs.takeOrphans(Integer.MAX_VALUE, FORGET_ORPHANS_MS);
+                return;
+            }
+            if (gcRate <= 0) {
+                return;
+            }
+
+            List<String> orphans = blockRefs.takeOrphans((int) Math.max(1, gcRate * GC_INTERVAL_MS / 1000),
+                    GC_GRACE_MS);
+            if (orphans.isEmpty()) {
+                return;
+            }
+
+            Set<String> deleted = new HashSet<>();
+            try {
+                onBlockServers(orphans, BlockStoreGrpc.BlockStoreFutureStub::condemnBlocks);
+
+                Set<String> referenced = referencedBlocks(orphans);
+                HashList request = HashList.newBuilder().addAllHashes(orphans).build();
+                for (MetadataGroup other : otherGroups) {
+                    referenced.addAll(other.onLeader(stub -> stub.referencedBlocks(request), response -> false)
+                            .getHashesList());
+                }
+
+                List<String> unreferenced = new ArrayList<>();
+                for (String hash : orphans) {
+                    if (!referenced.contains(hash)) {
+                        unreferenced.add(hash);
+                    }
+                }
+                onBlockServers(referenced, BlockStoreGrpc.BlockStoreFutureStub::releaseBlocks);
+                List<HashList> results = onBlockServers(unreferenced, BlockStoreGrpc.BlockStoreFutureStub::deleteBlocks);
+                for (HashList result : results) {
+                    deleted.addAll(result.getHashesList());
+                }
+            } catch (RuntimeException e) {
+                logger.warning("Garbage collection failed: " + e.getMessage());
+                try {
+                    onBlockServers(orphans, BlockStoreGrpc.BlockStoreFutureStub::releaseBlocks);
+                } catch (RuntimeException e2) {
+                    logger.warning("Unable to release condemned blocks: " + e2.getMessage());
+                }
+                blockRefs.returnOrphans(orphans);
+                return;
+            }
+
+            if (!deleted.isEmpty()) {
+                logger.info(String.format("Deleted %d unreferenced blocks", deleted.size()));
+            }
+        }
+
+        // Make the call in parallel on every block server that keeps copies of some of the
+        // hashes, with those hashes, and wait for all of them
+        private <T> List<T> onBlockServers(Collection<String> hashes,
+                BiFunction<BlockStoreGrpc.BlockStoreFutureStub, HashList, ListenableFuture<T>> call) {
+            List<List<String>> byServer = new ArrayList<>();
+            for (int i = 0; i < blockStubs.length; i++) {
+                byServer.add(new ArrayList<>());
+            }
+            for (String hash : hashes) {
+                for (int server : config.getBlockServersFor(hash)) {
+                    byServer.get(server - 1).add(hash);
+                }
+            }
+
+            List<ListenableFuture<T>> calls = new ArrayList<>();
+            for (int s = 0; s < blockStubs.length; s++) {
+                List<String> serverHashes = byServer.get(s);
+                for (int i = 0; i < serverHashes.size(); i += HAS_BLOCKS_BATCH) {
+                    List<String> batch = serverHashes.subList(i, Math.min(i + HAS_BLOCKS_BATCH, serverHashes.size()));
+                    calls.add(call.apply(blockStubs[s].withDeadlineAfter(GC_CALL_TIMEOUT_MS, TimeUnit.MILLISECONDS),
+                            HashList.newBuilder().addAllHashes(batch).build()));
+                }
+            }
+
+            List<T> results = new ArrayList<>();
+            for (ListenableFuture<T> future : calls) {
+                results.add(Futures.getUnchecked(future));
+            }
+            return results;
+        }
+
+        // Apply every entry below end
+        private void applyEntries(int end) {
+            int lastIndex = end - 1;
 
             for (int i = lastApplied + 1; i <= lastIndex; i++) {
-                LogEntry entry = logs.get(i);
+                LogEntry entry = log.get(i);
                 if (entry.getCommand() == LogEntry.Command.MODIFY) {
                     applyModify(entry.getRequest());
                 } else if (entry.getCommand() == LogEntry.Command.DELETE) {
                     applyDelete(entry.getRequest());
+                } else if (entry.getCommand() == LogEntry.Command.NOOP) {
+                    lastApplied++;
                 } else {
                     throw new IllegalStateException();
                 }
             }
 
-            lastApplied = lastIndex;
+            lastApplied = Math.max(lastApplied, lastIndex);
+            maybeSnapshot();
         }
 
-        private boolean twoPhaseCommit(LogEntry.Command command, FileInfo request) {
-            if (numMetaServer <= 1) {
-                return true;
+        private Snapshot captureSnapshot() {
+            Snapshot.Builder builder = Snapshot.newBuilder().setLastIndex(lastApplied)
+                    .setLastTerm(log.termAt(lastApplied));
+            builder.addAllFiles(files.values());
+            return builder.build();
+        }
+
+        // Every snapshotEvery applied entries, write a snapshot in the background and compact the
+        // log in memory. The last snapshotEvery entries stay around for followers that are only
+        // a little behind, anything older is sent to them as a snapshot.
+        private void maybeSnapshot() {
+            if (snapshotting || lastApplied - snapshotIndex < snapshotEvery) {
+                return;
             }
 
-            int commitIndex = logs.size();
-            LogEntry entry = LogEntry.newBuilder().setIndex(commitIndex).setCommand(command).setRequest(request).build();
-            logs.add(entry);
+            Snapshot snapshot = log.isPersistent() ? captureSnapshot() : null;
+            int compactIndex = lastApplied - snapshotEvery;
 
-            // Prepare phase
-            int counter = 0;
-            ExecutorService executor = Executors.newFixedThreadPool(numMetaServer - 1);
-            List<Future<SimpleAnswer>> results = new ArrayList<>();
+            snapshotting = true;
+            snapshotIndex = lastApplied;
+            snapshotExecutor.execute(() -> {
+                try {
+                    if (snapshot != null) {
+                        log.saveSnapshot(snapshot);
+                    }
+                    log.compact(compactIndex);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                } finally {
+                    synchronized (this) {
+                        snapshotting = false;
+                    }
+                }
+            });
+        }
 
-            for (MetadataStoreGrpc.MetadataStoreBlockingStub follower : metaStubs) {
-                results.add(executor.submit(() -> follower.prepare(entry)));
+        // Losing the log means we can't promise durability anymore, stop serving like a crash
+        private void persistOrCrash(int upTo) throws IOException {
+            try {
+                log.persist(upTo);
+            } catch (IOException e) {
+                logger.severe("Unable to write the log: " + e.getMessage());
+                crashed = true;
+                throw e;
             }
+        }
 
-            for (Future<SimpleAnswer> f : results) {
+        private void startTimer() {
+            daemonExecutor.scheduleWithFixedDelay(() -> {
+                // An exception would cancel the timer for good
                 try {
-                    counter += f.get().getAnswer() ? 1 : 0;
-                } catch (Exception e) {
+                    tick();
+                } catch (RuntimeException e) {
                     e.printStackTrace();
                 }
+            }, HEARTBEAT_MS, HEARTBEAT_MS, TimeUnit.MILLISECONDS);
+        }
+
+        private void tick() {
+            if (crashed) {
+                return;
             }
 
-            executor.shutdownNow();
+            if (isLeader) {
+                replicate(true);
+            } else if (System.currentTimeMillis() >= electionDeadline) {
+                startElection();
+            }
+        }
+
+        private synchronized void resetElectionDeadline() {
+            electionDeadline = System.currentTimeMillis() + ELECTION_TIMEOUT_MS
+                    + ThreadLocalRandom.current().nextLong(ELECTION_TIMEOUT_MS);
+        }
 
-            // Commit or abort phase, no need to send commit/abort to follower since
-            // AppendEntries will send logs and apply anyway and resolve inconsistent logs
-            if (counter < (numMetaServer + 1) / 2) {
-                logs.remove(logs.size() - 1);
+        // Persist the term and vote, failing to do so stops serving like a crash
+        private boolean saveVote(int term, int candidate) {
+            try {
+                log.saveVote(term, candidate);
+            } catch (IOException e) {
+                logger.severe("Unable to save the vote: " + e.getMessage());
+                crashed = true;
                 return false;
             }
+            currentTerm = term;
+            votedFor = candidate;
+            return true;
+        }
+
+        private void startElection() {
+            VoteRequest request;
+            int round;
+            synchronized (this) {
+                if (isLeader || crashed) {
+                    return;
+                }
+
+                resetElectionDeadline();
+                round = ++preVoteRound;
+                preVotes = 1;
+                if (preVotes > numMetaServer / 2) {
+                    request = raiseTerm();
+                } else {
+                    request = VoteRequest.newBuilder().setTerm(currentTerm + 1).setCandidate(servNum)
+                            .setLastIndex(log.size() - 1).setLastTerm(log.lastTerm()).setPreVote(true).build();
+                }
+            }
+            requestVotes(request, round);
+        }
+
+        // Called holding the lock once a majority would vote for us. Returns the request for
+        // the votes, or null if there is nobody to ask.
+        private VoteRequest raiseTerm() {
+            preVotes = 0;
+            if (!saveVote(currentTerm + 1, servNum)) {
+                return null;
+            }
+
+            leaderNum = 0;
+            votes = 1;
+            logger.info("Starting election for term " + currentTerm);
+            if (votes > numMetaServer / 2) {
+                becomeLeader();
+                return null;
+            }
+            return VoteRequest.newBuilder().setTerm(currentTerm).setCandidate(servNum)
+                    .setLastIndex(log.size() - 1).setLastTerm(log.lastTerm()).build();
+        }
+
+        private void requestVotes(VoteRequest request, int round) {
+            if (request == null) {
+                return;
+            }
+
+            for (int i = 0; i < numMetaServer - 1; i++) {
+                MetadataStoreGrpc.MetadataStoreStub metaStub = metaStubs[i];
+                Context.ROOT.run(() -> metaStub.withDeadlineAfter(VOTE_TIMEOUT_MS, TimeUnit.MILLISECONDS)
+                        .requestVote(request, new StreamObserver<VoteResult>() {
+                            @Override
+                            public void onNext(VoteResult result) {
+                                handleVote(request, round, result);
+                            }
+
+                            @Override
+                            public void onError(Throwable t) {
+                                logger.fine("RequestVote failed: " + t.getMessage());
+                            }
+
+                            @Override
+                            public void onCompleted() {
+                            }
+                        }));
+            }
+        }
+
+        private void handleVote(VoteRequest request, int round, VoteResult result) {
+            VoteRequest election = null;
+            synchronized (this) {
+                if (result.getTerm() > currentTerm) {
+                    becomeFollower(result.getTerm(), 0);
+                } else if (!result.getGranted()) {
+                    return;
+                } else if (request.getPreVote()) {
+                    if (round == preVoteRound && request.getTerm() == currentTerm + 1 && preVotes > 0
+                            && ++preVotes > numMetaServer / 2) {
+                        election = raiseTerm();
+                    }
+                } else if (request.getTerm() == currentTerm && votes > 0) {
+                    votes++;
+                    if (votes > numMetaServer / 2) {
+                        becomeLeader();
+                    }
+                }
+            }
+            requestVotes(election, round);
+        }
+
+        // Called holding the lock. Starts with a no-op entry of the new term, committing it
+        // commits whatever earlier leaders left in the log.
+        private void becomeLeader() {
+            isLeader = true;
+            leaderNum = servNum;
+            preVotes = 0;
+            votes = 0;
+            logger.info("Became leader for term " + currentTerm);
+
+            // Followers that are behind answer the first heartbeat with where they are
+            Arrays.fill(matchIndex, 0);
+            Arrays.fill(sentIndex, log.size());
+            Arrays.fill(reachable, true);
+            Arrays.fill(inFlight, 0);
+            Arrays.fill(lastSent, 0);
+            Arrays.fill(sentCommit, 0);
+            heartbeatMs = HEARTBEAT_MS;
+            heartbeatLogSize = log.size();
+
+            // Entries that are not committed yet still hold on to their versions
+            proposedVersions.clear();
+            for (int i = lastApplied + 1; i < log.size(); i++) {
+                LogEntry entry = log.get(i);
+                if (entry.getCommand() != LogEntry.Command.NOOP) {
+                    proposedVersions.put(entry.getRequest().getFilename(), entry.getRequest().getVersion());
+                }
+            }
+
+            log.add(LogEntry.newBuilder().setIndex(log.size()).setTerm(currentTerm)
+                    .setCommand(LogEntry.Command.NOOP).build());
+            try {
+                persistOrCrash(log.size());
+            } catch (IOException e) {
+                return;
+            }
+            advanceCommitIndex();
+            daemonExecutor.execute(() -> replicate(true));
+        }
 
+        // Called holding the lock when we learn about a leader or a newer term. Returns false if
+        // the new term could not be saved.
+        private boolean becomeFollower(int term, int leader) {
+            if (term > currentTerm && !saveVote(term, 0)) {
+                return false;
+            }
+
+            if (isLeader) {
+                logger.info("Stepping down in term " + currentTerm);
+                isLeader = false;
+                proposedVersions.clear();
+                for (List<CompletableFuture<Boolean>> waiters : commitWaiters.values()) {
+                    for (CompletableFuture<Boolean> waiter : waiters) {
+                        waiter.complete(false);
+                    }
+                }
+                commitWaiters.clear();
+            }
+            preVotes = 0;
+            votes = 0;
+            leaderNum = leader;
             return true;
         }
 
         @Override
-        public void prepare(LogEntry request, StreamObserver<SimpleAnswer> responseObserver) {
-            SimpleAnswer.Builder builder = SimpleAnswer.newBuilder();
-
+        public void requestVote(VoteRequest request, StreamObserver<VoteResult> responseObserver) {
             if (crashed) {
-                responseObserver.onNext(builder.setAnswer(false).build());
-                responseObserver.onCompleted();
+                responseObserver.onError(new RuntimeException("Server crashed!"));
                 return;
             }
 
+            boolean granted = false;
+            int term;
             synchronized (this) {
-                // Follower not recovered or has entries that should be removed due to missing abort
-                if (request.getIndex() != logs.size()) {
-                    responseObserver.onNext(builder.setAnswer(false).build());
-                    responseObserver.onCompleted();
+                // While a leader is around, a server that lost touch with it must not be able to
+                // depose it by starting elections
+                boolean leaderAlive = isLeader || System.currentTimeMillis() - lastContact < ELECTION_TIMEOUT_MS;
+                int lastTerm = log.lastTerm();
+                boolean upToDate = request.getLastTerm() > lastTerm
+                        || request.getLastTerm() == lastTerm && request.getLastIndex() >= log.size() - 1;
+                if (request.getPreVote()) {
+                    // Tells the candidate what we would answer without touching our term or vote
+                    granted = request.getTerm() > currentTerm && !leaderAlive && upToDate;
                 } else {
-                    logs.add(request);
-                    responseObserver.onNext(builder.setAnswer(true).build());
-                    responseObserver.onCompleted();
+                    if (request.getTerm() > currentTerm && !leaderAlive && !becomeFollower(request.getTerm(), 0)) {
+                        responseObserver.onError(new RuntimeException("Server crashed!"));
+                        return;
+                    }
+
+                    if (request.getTerm() == currentTerm && (votedFor == 0 || votedFor == request.getCandidate())
+                            && upToDate && saveVote(currentTerm, request.getCandidate())) {
+                        granted = true;
+                        resetElectionDeadline();
+                    }
                 }
+                term = currentTerm;
             }
+
+            responseObserver.onNext(VoteResult.newBuilder().setTerm(term).setGranted(granted).build());
+            responseObserver.onCompleted();
         }
 
-        private void startAppendEntries() {
-            daemonExecutor.scheduleAtFixedRate(this::sendAppendEntries, 500, 500, TimeUnit.MILLISECONDS);
+        // Send followers the durable entries they are missing over the async stubs, each call
+        // carrying everything that became durable since the previous one. Up to MAX_IN_FLIGHT
+        // calls per follower are outstanding, replies start the next call. A follower with no call
+        // outstanding hears about a new commit index right away, unless entries waiting for our
+        // fsync are about to carry it, so it applies entries about a round trip after the leader.
+        // A heartbeat only goes to followers that heard nothing for heartbeatMs, and probes
+        // unreachable ones.
+        private void replicate(boolean heartbeat) {
+            if (numMetaServer <= 1) {
+                return;
+            }
+
+            List<Runnable> calls = new ArrayList<>();
+            synchronized (this) {
+                if (!isLeader || crashed) {
+                    return;
+                }
+
+                long now = System.currentTimeMillis();
+                if (heartbeat) {
+                    heartbeatMs = log.size() > heartbeatLogSize ? HEARTBEAT_MS
+                            : Math.min(heartbeatMs * 2, IDLE_HEARTBEAT_MS);
+                    heartbeatLogSize = log.size();
+                }
+
+                int durable = log.durableSize();
+                for (int i = 0; i < numMetaServer - 1; i++) {
+                    boolean idle = inFlight[i] == 0 && now - lastSent[i] >= heartbeatMs;
+                    boolean send;
+                    if (!reachable[i]) {
+                        send = heartbeat && idle;
+                    } else {
+                        send = inFlight[i] < MAX_IN_FLIGHT && (sentIndex[i] < durable
+                                || inFlight[i] == 0 && sentCommit[i] < commitIndex && log.size() == durable
+                                || heartbeat && idle);
+                    }
+
+                    if (send) {
+                        inFlight[i]++;
+                        calls.add(replicationCall(i, durable));
+                    }
+                }
+            }
+
+            // Calls are often started while serving a client's write, they must not be cancelled
+            // along with it once it is answered
+            for (Runnable call : calls) {
+                Context.ROOT.run(call);
+            }
         }
 
-        private synchronized void sendAppendEntries() {
-            ExecutorService executor = Executors.newFixedThreadPool(numMetaServer - 1);
-            List<Future<LogIndex>> results = new ArrayList<>();
+        // Next call for follower i, entries are only sent once they are durable here
+        private Runnable replicationCall(int i, int durable) {
+            MetadataStoreGrpc.MetadataStoreStub metaStub = metaStubs[i];
+            lastSent[i] = System.currentTimeMillis();
+            sentCommit[i] = commitIndex;
+            LogEntries.Builder request = LogEntries.newBuilder().setTerm(currentTerm).setLeader(servNum)
+                    .setCommitted(commitIndex);
+
+            // The log is compacted in the background, holding its lock keeps the entries and the
+            // term before them from the same view
+            if (!reachable[i]) {
+                // Probe with an empty call until it answers, then send what it is missing
+                int next;
+                synchronized (log) {
+                    next = Math.max(sentIndex[i], log.firstIndex());
+                    request.setPrevIndex(next - 1).setPrevTerm(log.termAt(next - 1));
+                }
+                StreamObserver<LogIndex> reply = replyObserver(i, next);
+                return () -> metaStub.withDeadlineAfter(APPEND_TIMEOUT_MS, TimeUnit.MILLISECONDS)
+                        .appendEntries(request.build(), reply);
+            }
 
-            for (int i = 0; i < numMetaServer - 1; i++) {
-                List<LogEntry> entries = logs.subList(nextIndex[i], logs.size());
-                LogEntries request = LogEntries.newBuilder().addAllEnries(entries).build();
-                MetadataStoreGrpc.MetadataStoreBlockingStub metaStub = metaStubs[i];
-                results.add(executor.submit(() -> metaStub.appendEntries(request)));
+            List<LogEntry> entries;
+            synchronized (log) {
+                entries = log.entriesFrom(sentIndex[i], durable, MAX_APPEND_BYTES);
+                if (entries != null) {
+                    request.setPrevIndex(sentIndex[i] - 1).setPrevTerm(log.termAt(sentIndex[i] - 1));
+                }
             }
 
-            for (int i = 0; i < numMetaServer - 1; i++) {
-                try {
-                    nextIndex[i] = results.get(i).get().getIndex();
-                } catch (Exception e) {
-                    e.printStackTrace();
+            if (entries == null) {
+                // The entries the follower needs were compacted away
+                Snapshot snapshot = captureSnapshot().toBuilder().setTerm(currentTerm).setLeader(servNum).build();
+                sentIndex[i] = snapshot.getLastIndex() + 1;
+                logger.info(String.format("Sending snapshot at %d to server %d", snapshot.getLastIndex(), peers[i]));
+                StreamObserver<LogIndex> reply = replyObserver(i, sentIndex[i]);
+                return () -> sendSnapshot(metaStub.withDeadlineAfter(SNAPSHOT_TIMEOUT_MS, TimeUnit.MILLISECONDS),
+                        snapshot, reply);
+            }
+
+            request.addAllEnries(entries);
+            sentIndex[i] += entries.size();
+            StreamObserver<LogIndex> reply = replyObserver(i, sentIndex[i]);
+            return () -> metaStub.withDeadlineAfter(APPEND_TIMEOUT_MS, TimeUnit.MILLISECONDS)
+                    .appendEntries(request.build(), reply);
+        }
+
+        private StreamObserver<LogIndex> replyObserver(int i, int sentTo) {
+            int term = currentTerm;
+            return new StreamObserver<LogIndex>() {
+                private boolean answered;
+
+                @Override
+                public void onNext(LogIndex index) {
+                    answered = true;
+                    handleReply(i, term, sentTo, index);
                 }
+
+                @Override
+                public void onError(Throwable t) {
+                    logger.fine("AppendEntries to server " + peers[i] + " failed: " + t.getMessage());
+                    if (!answered) {
+                        handleReply(i, term, sentTo, null);
+                    }
+                }
+
+                @Override
+                public void onCompleted() {
+                }
+            };
+        }
+
+        // A follower answered a call of the given term that sent it everything below sentTo, or
+        // failed if reply is null
+        private void handleReply(int i, int term, int sentTo, LogIndex reply) {
+            synchronized (this) {
+                // The counters were reset when we became leader again
+                if (!isLeader || term != currentTerm) {
+                    return;
+                }
+
+                inFlight[i]--;
+                reachable[i] = reply != null;
+                if (reply == null) {
+                    sentIndex[i] = Math.min(sentIndex[i], matchIndex[i]);
+                    return;
+                }
+                if (reply.getTerm() > currentTerm) {
+                    becomeFollower(reply.getTerm(), 0);
+                    return;
+                }
+
+                int stored = Math.min(reply.getIndex(), log.size());
+                if (stored >= sentTo) {
+                    matchIndex[i] = Math.max(matchIndex[i], stored);
+                    sentIndex[i] = Math.max(sentIndex[i], stored);
+                } else {
+                    // Missed an earlier call, restarted or has entries we don't, send again from
+                    // where it says
+                    matchIndex[i] = Math.min(matchIndex[i], stored);
+                    sentIndex[i] = Math.min(sentIndex[i], stored);
+                }
+
+                advanceCommitIndex();
             }
 
-            executor.shutdownNow();
+            replicate(false);
+        }
+
+        private static void sendSnapshot(MetadataStoreGrpc.MetadataStoreStub stub, Snapshot snapshot,
+                                         StreamObserver<LogIndex> reply) {
+            StreamObserver<Snapshot> stream = stub.installSnapshot(reply);
+
+            // Always send one part, even for an empty state
+            Snapshot.Builder part = snapshot.toBuilder().clearFiles();
+            int bytes = 0;
+            for (FileInfo file : snapshot.getFilesList()) {
+                if (part.getFilesCount() > 0 && bytes + file.getSerializedSize() > SNAPSHOT_CHUNK_BYTES) {
+                    stream.onNext(part.build());
+                    part.clearFiles();
+                    bytes = 0;
+                }
+                part.addFiles(file);
+                bytes += file.getSerializedSize();
+            }
+            stream.onNext(part.build());
+            stream.onCompleted();
+        }
+
+        @Override
+        public StreamObserver<Snapshot> installSnapshot(StreamObserver<LogIndex> responseObserver) {
+            if (crashed) {
+                responseObserver.onError(new RuntimeException("Server crashed!"));
+                // The rest of the stream is read and dropped
+                return new StreamObserver<Snapshot>() {
+                    @Override
+                    public void onNext(Snapshot part) {
+                    }
+
+                    @Override
+                    public void onError(Throwable t) {
+                    }
+
+                    @Override
+                    public void onCompleted() {
+                    }
+                };
+            }
+
+            return new StreamObserver<Snapshot>() {
+                private final Snapshot.Builder snapshot = Snapshot.newBuilder();
+
+                @Override
+                public void onNext(Snapshot part) {
+                    snapshot.mergeFrom(part);
+                }
+
+                @Override
+                public void onError(Throwable t) {
+                    logger.warning("InstallSnapshot cancelled: " + t.getMessage());
+                }
+
+                @Override
+                public void onCompleted() {
+                    if (crashed) {
+                        return;
+                    }
+                    try {
+                        responseObserver.onNext(installSnapshot(snapshot.build()));
+                        responseObserver.onCompleted();
+                    } catch (IOException e) {
+                        responseObserver.onError(e);
+                    }
+                }
+            };
+        }
+
+        private synchronized LogIndex installSnapshot(Snapshot snapshot) throws IOException {
+            LogIndex.Builder reply = LogIndex.newBuilder();
+            if (snapshot.getTerm() < currentTerm) {
+                return reply.setIndex(log.size()).setTerm(currentTerm).build();
+            }
+            if (!becomeFollower(snapshot.getTerm(), snapshot.getLeader())) {
+                throw new IOException("Unable to save the term");
+            }
+            resetElectionDeadline();
+            lastContact = System.currentTimeMillis();
+            reply.setTerm(currentTerm).setIndex(snapshot.getLastIndex() + 1);
+
+            // We might have caught up through AppendEntries in the meantime, everything up to
+            // what we applied is committed and the same as in the snapshot
+            if (snapshot.getLastIndex() <= lastApplied) {
+                return reply.build();
+            }
+
+            // Readers see each file either before or after, never a missing one
+            Set<String> names = new HashSet<>();
+            for (FileInfo file : snapshot.getFilesList()) {
+                files.put(file.getFilename(), file);
+                names.add(file.getFilename());
+            }
+            files.keySet().retainAll(names);
+            blockRefs.reset(files.values());
+            lastApplied = snapshot.getLastIndex();
+            commitIndex = Math.max(commitIndex, lastApplied + 1);
+            snapshotIndex = lastApplied;
+
+            try {
+                log.installSnapshot(snapshot);
+            } catch (IOException e) {
+                logger.severe("Unable to write the snapshot: " + e.getMessage());
+                crashed = true;
+                throw e;
+            }
+
+            logger.info(String.format("Installed snapshot at %d with %d files", lastApplied, files.size()));
+            return reply.build();
         }
 
         @Override
         public void appendEntries(LogEntries request, StreamObserver<LogIndex> responseObserver) {
-            List<LogEntry> entries = request.getEnriesList();
+            if (crashed) {
+                responseObserver.onError(new RuntimeException("Server crashed!"));
+                return;
+            }
 
+            LogIndex.Builder reply = LogIndex.newBuilder();
             synchronized (this) {
-                if (entries.isEmpty() || entries.get(0).getIndex() > logs.size()) {
-                    responseObserver.onNext(LogIndex.newBuilder().setIndex(logs.size()).build());
-                    responseObserver.onCompleted();
+                if (request.getTerm() < currentTerm) {
+                    // From a leader that was replaced, it steps down when it sees our term
+                    reply.setIndex(log.size()).setTerm(currentTerm);
+                } else if (!becomeFollower(request.getTerm(), request.getLeader())) {
+                    responseObserver.onError(new RuntimeException("Server crashed!"));
                     return;
+                } else {
+                    resetElectionDeadline();
+                    lastContact = System.currentTimeMillis();
+                    reply.setTerm(currentTerm);
+
+                    try {
+                        reply.setIndex(appendFromLeader(request));
+                    } catch (IOException e) {
+                        responseObserver.onError(e);
+                        return;
+                    }
                 }
+            }
+
+            responseObserver.onNext(reply.build());
+            responseObserver.onCompleted();
+        }
 
-                int start = entries.get(0).getIndex();
-                for (int i = logs.size() - 1; i >= start; i--) {
-                    logs.remove(i);
+        // Called holding the lock. Takes the entries if our log has the entry before them, and
+        // returns the end of what we share with the leader, or where it should send from if the
+        // entry before them is missing or from another term. Entries we have from another term
+        // were never committed and are replaced, entries covered by our snapshot are committed
+        // and skipped.
+        private int appendFromLeader(LogEntries request) throws IOException {
+            int prev = request.getPrevIndex();
+            if (prev >= log.size()) {
+                return log.size();
+            }
+            if (prev >= log.firstIndex() - 1 && log.termAt(prev) != request.getPrevTerm()) {
+                // Skip back over the whole term that doesn't match
+                int conflictTerm = log.termAt(prev);
+                int first = prev;
+                while (first - 1 > lastApplied && log.termAt(first - 1) == conflictTerm) {
+                    first--;
                 }
-                logs.addAll(entries);
+                return first;
+            }
 
-                applyEntries();
+            int end = prev + 1;
+            for (LogEntry entry : request.getEnriesList()) {
+                int index = entry.getIndex();
+                end = index + 1;
+                if (index < log.firstIndex()) {
+                    continue;
+                }
+                if (index < log.size()) {
+                    if (log.termAt(index) == entry.getTerm()) {
+                        continue;
+                    }
+                    log.truncateFrom(index);
+                }
+                log.add(entry);
+            }
 
-                responseObserver.onNext(LogIndex.newBuilder().setIndex(logs.size()).build());
-                responseObserver.onCompleted();
+            persistOrCrash(end);
+            commitIndex = Math.max(commitIndex, Math.min(request.getCommitted(), end));
+            applyEntries(commitIndex);
+            return end;
+        }
+
+        // Only the leader knows about every write in progress
+        @Override
+        public void referencedBlocks(HashList request, StreamObserver<HashList> responseObserver) {
+            if (crashed) {
+                responseObserver.onError(new RuntimeException("Server crashed!"));
+                return;
             }
+
+            if (!isLeader) {
+                responseObserver.onError(new RuntimeException("Not the leader"));
+                return;
+            }
+
+            HashList response = HashList.newBuilder()
+                    .addAllHashes(referencedBlocks(request.getHashesList())).build();
+            responseObserver.onNext(response);
+            responseObserver.onCompleted();
         }
 
         @Override
@@ -438,7 +1469,10 @@ public final class MetadataStore {
 
         @Override
         public void crash(Empty request, StreamObserver<Empty> responseObserver) {
-            crashed = true;
+            synchronized (this) {
+                crashed = true;
+                becomeFollower(currentTerm, 0);
+            }
             Empty response = Empty.newBuilder().build();
             responseObserver.onNext(response);
             responseObserver.onCompleted();
@@ -447,6 +1481,7 @@ public final class MetadataStore {
         @Override
         public void restore(Empty request, StreamObserver<Empty> responseObserver) {
             crashed = false;
+            resetElectionDeadline();
             Empty response = Empty.newBuilder().build();
             responseObserver.onNext(response);
             responseObserver.onCompleted();
@@ -462,18 +1497,8 @@ public final class MetadataStore {
         @Override
         public void getVersion(FileInfo request, StreamObserver<FileInfo> responseObserver) {
             // Getversion should always respond even when crashed
-            FileInfo.Builder builder = FileInfo.newBuilder();
-            builder.setFilename(request.getFilename());
-
-            synchronized (this) {
-                Integer version = versionMap.get(request.getFilename());
-
-                if (version != null) {
-                    builder.setVersion(version);
-                }
-            }
-
-            FileInfo response = builder.build();
+            FileInfo response = FileInfo.newBuilder().setFilename(request.getFilename())
+                    .setVersion(committedVersion(request.getFilename())).build();
             responseObserver.onNext(response);
             responseObserver.onCompleted();
         }
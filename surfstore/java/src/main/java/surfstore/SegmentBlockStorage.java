@@ -0,0 +1,688 @@
+package surfstore;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.UnsafeByteOperations;
+import surfstore.SurfStoreBasic.Block;
+
+/*
+ * Append-only segment log of blocks on disk. Each record is laid out as
+ *   [hash length][data length][crc32][hash][data]
+ * Compressed blocks are stored the way they came in, with the COMPRESSED bit
+ * set in the hash length of the record and in the length in the index file.
+ * A segment is sealed once it grows past segmentSize and an index file of
+ * (hash, offset, length) entries and a crc32 of them is written next to it, so
+ * a restart only reads the index files plus the one active segment. A
+ * segment whose index file is missing or fails its checksum is scanned
+ * instead. Only the hash index is kept in
+ * memory. Sealed segments never change, they are mapped read-only and their
+ * blocks are served as slices of the mapping, without copying them to the
+ * heap. Blocks of the active segment are read from disk. In front of both sits
+ * a bounded BlockCache that keeps the blocks read most often, so a scan that
+ * churns the page cache doesn't push them out. A mapped block is only copied
+ * into it once it is read a second time, a one-off read is served straight
+ * from the mapping.
+ *
+ * Deleting a block appends a tombstone record, a record with a data length of
+ * TOMBSTONE and no data, which is listed in the index files as well. Once less
+ * than half of a sealed segment is still live, it is queued for the compactor
+ * thread, which copies its live blocks to the active segment and removes it.
+ * Slices handed out before stay valid, the mapping outlives the file.
+ *
+ * Reads never take a lock: the index is a concurrent map and records are
+ * only published to it after they are fully written. Appends are serialized
+ * on writeLock, and the cache is split into stripes that lock themselves.
+ * The compactor takes writeLock for one record at a time, so puts and deletes
+ * don't wait for a whole segment to be copied. A read that finds its segment
+ * compacted away looks the block up again.
+ */
+class SegmentBlockStorage implements BlockStorage {
+    private static final Logger logger = Logger.getLogger(SegmentBlockStorage.class.getName());
+
+    private static final int HEADER_SIZE = 12;
+    private static final int MAX_HASH_SIZE = 1024;
+    private static final int MAX_BLOCK_SIZE = 64 * 1024 * 1024;
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final String INDEX_SUFFIX = ".idx";
+    private static final int CACHE_STRIPES = 16;
+    // The cache hit rate is logged every CACHE_REPORT_READS reads
+    private static final long CACHE_REPORT_READS = 1 << 20;
+    private static final int TOMBSTONE = -1;
+    private static final int COMPRESSED = 1 << 30;
+    private static final long CLOSE_TIMEOUT_MS = 5000;
+
+    private final File dir;
+    private final long segmentSize;
+    private final Object writeLock = new Object();
+    // Held while forcing the active segment, so concurrent syncs share one fsync
+    private final Object syncLock = new Object();
+
+    private Map<String, Location> index;
+    private Map<Integer, FileChannel> readers;
+    private Map<Integer, ByteBuffer> mappings;
+    private BlockCache[] cacheStripes;
+    private AtomicLong reads;
+    // Bytes of each segment the index still points to
+    private Map<Integer, Long> liveBytes;
+    // Segments queued for or being compacted, by the single compactor thread
+    private Set<Integer> compacting;
+    private ExecutorService compactor;
+    private volatile boolean closing;
+
+    private int activeId;
+    private FileChannel active;
+    private long activeSize;
+    private List<Entry> activeEntries;
+    // Bytes appended since the start and how many of them are known to be on disk
+    private volatile long written;
+    private volatile long synced;
+
+    private static class Location {
+        final int segment;
+        final long offset;
+        final int length;
+        final boolean compressed;
+
+        Location(int segment, long offset, int length, boolean compressed) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+            this.compressed = compressed;
+        }
+    }
+
+    // A record of a segment as listed in its index file
+    private static class Entry {
+        final String hash;
+        final long offset;
+        final int length;
+        final boolean compressed;
+
+        Entry(String hash, long offset, int length, boolean compressed) {
+            this.hash = hash;
+            this.offset = offset;
+            this.length = length;
+            this.compressed = compressed;
+        }
+    }
+
+    SegmentBlockStorage(File dir, long segmentSize, long cacheSize) throws IOException {
+        this.dir = dir;
+        this.segmentSize = segmentSize;
+        this.index = new ConcurrentHashMap<>();
+        this.readers = new ConcurrentHashMap<>();
+        this.mappings = new ConcurrentHashMap<>();
+        this.cacheStripes = new BlockCache[CACHE_STRIPES];
+        for (int i = 0; i < CACHE_STRIPES; i++) {
+            cacheStripes[i] = new BlockCache(cacheSize / CACHE_STRIPES);
+        }
+        this.reads = new AtomicLong();
+        this.liveBytes = new ConcurrentHashMap<>();
+        this.compacting = ConcurrentHashMap.newKeySet();
+        this.compactor = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "segment-compactor");
+            t.setDaemon(true);
+            return t;
+        });
+        this.activeEntries = new ArrayList<>();
+
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Cannot create data directory " + dir);
+        }
+
+        recover();
+    }
+
+    private void recover() throws IOException {
+        long start = System.currentTimeMillis();
+        List<Integer> ids = new ArrayList<>();
+        File[] files = dir.listFiles((d, name) -> name.endsWith(SEGMENT_SUFFIX));
+
+        if (files != null) {
+            for (File f : files) {
+                String name = f.getName();
+                try {
+                    ids.add(Integer.parseInt(name.substring(0, name.length() - SEGMENT_SUFFIX.length())));
+                } catch (NumberFormatException e) {
+                    logger.warning("Skipping unknown file " + f);
+                }
+            }
+        }
+        Collections.sort(ids);
+
+        for (int i = 0; i < ids.size(); i++) {
+            int id = ids.get(i);
+            boolean last = i == ids.size() - 1;
+            readers.put(id, FileChannel.open(segmentFile(id).toPath(), StandardOpenOption.READ));
+
+            if (!last && loadIndex(id)) {
+                map(id);
+                continue;
+            }
+
+            // Active segment, or a segment sealed without its index file because of a crash
+            List<Entry> entries = new ArrayList<>();
+            long size = scanSegment(id, entries);
+            if (last) {
+                activeId = id;
+                activeEntries = entries;
+                openActive(size);
+            } else {
+                writeIndex(id, entries);
+                map(id);
+            }
+        }
+
+        for (Location loc : index.values()) {
+            liveBytes.merge(loc.segment, (long) loc.length, Long::sum);
+        }
+
+        if (active == null) {
+            activeId = ids.isEmpty() ? 0 : ids.get(ids.size() - 1) + 1;
+            readers.put(activeId, openSegment(activeId));
+            openActive(0);
+            syncDir();
+        }
+
+        logger.info(String.format("Recovered %d blocks from %d segments in %d ms", index.size(),
+                readers.size(), System.currentTimeMillis() - start));
+    }
+
+    private File segmentFile(int id) {
+        return new File(dir, String.format("%08d%s", id, SEGMENT_SUFFIX));
+    }
+
+    private File indexFile(int id) {
+        return new File(dir, String.format("%08d%s", id, INDEX_SUFFIX));
+    }
+
+    private FileChannel openSegment(int id) throws IOException {
+        return FileChannel.open(segmentFile(id).toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.READ);
+    }
+
+    // Segments past 2GB are too large to map, they are read like the active segment
+    private void map(int id) throws IOException {
+        FileChannel channel = readers.get(id);
+        if (channel.size() <= Integer.MAX_VALUE) {
+            MappedByteBuffer mapping = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            mappings.put(id, mapping);
+        }
+    }
+
+    private void openActive(long size) throws IOException {
+        active = FileChannel.open(segmentFile(activeId).toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE);
+        // Drop a partially written record at the tail
+        if (active.size() > size) {
+            logger.warning(String.format("Truncating segment %d from %d to %d bytes", activeId, active.size(), size));
+            active.truncate(size);
+        }
+        active.position(size);
+        activeSize = size;
+    }
+
+    private boolean loadIndex(int id) {
+        List<Entry> entries = readIndex(id);
+        if (entries == null) {
+            return false;
+        }
+
+        for (Entry entry : entries) {
+            apply(id, entry);
+        }
+        return true;
+    }
+
+    // Returns null if the index file is missing, unreadable or fails its checksum
+    private List<Entry> readIndex(int id) {
+        File f = indexFile(id);
+        if (!f.exists()) {
+            return null;
+        }
+
+        CRC32 crc = new CRC32();
+        try (DataInputStream in = new DataInputStream(new CheckedInputStream(
+                new BufferedInputStream(new FileInputStream(f)), crc))) {
+            int count = in.readInt();
+            if (count < 0) {
+                throw new IOException("Negative entry count");
+            }
+            List<Entry> entries = new ArrayList<>(Math.min(count, 1024));
+            for (int i = 0; i < count; i++) {
+                String hash = in.readUTF();
+                long offset = in.readLong();
+                int length = in.readInt();
+                boolean compressed = length != TOMBSTONE && (length & COMPRESSED) != 0;
+                entries.add(new Entry(hash, offset, length & ~(compressed ? COMPRESSED : 0), compressed));
+            }
+
+            int expected = (int) crc.getValue();
+            if (in.readInt() != expected || in.read() != -1) {
+                throw new IOException("Checksum mismatch");
+            }
+            return entries;
+        } catch (IOException e) {
+            logger.warning("Corrupted index file " + f + ", rescanning segment: " + e.getMessage());
+            return null;
+        }
+    }
+
+    // Records are replayed in order, the latest one of a hash decides where it is or that it's gone
+    private void apply(int id, Entry entry) {
+        if (entry.length == TOMBSTONE) {
+            index.remove(entry.hash);
+        } else {
+            index.put(entry.hash, new Location(id, entry.offset, entry.length, entry.compressed));
+        }
+    }
+
+    // The index file is on disk, under its name, before this returns
+    private void writeIndex(int id, List<Entry> entries) throws IOException {
+        File tmp = new File(dir, indexFile(id).getName() + ".tmp");
+
+        CRC32 crc = new CRC32();
+        try (FileOutputStream file = new FileOutputStream(tmp)) {
+            DataOutputStream out = new DataOutputStream(new CheckedOutputStream(new BufferedOutputStream(file), crc));
+            out.writeInt(entries.size());
+            for (Entry entry : entries) {
+                out.writeUTF(entry.hash);
+                out.writeLong(entry.offset);
+                out.writeInt(entry.compressed ? entry.length | COMPRESSED : entry.length);
+            }
+            out.writeInt((int) crc.getValue());
+            out.flush();
+            file.getChannel().force(true);
+        }
+
+        Files.move(tmp.toPath(), indexFile(id).toPath(), StandardCopyOption.ATOMIC_MOVE);
+        syncDir();
+    }
+
+    // Makes files created, renamed or deleted in dir so far survive a crash
+    private void syncDir() throws IOException {
+        try (FileChannel channel = FileChannel.open(dir.toPath(), StandardOpenOption.READ)) {
+            channel.force(true);
+        }
+    }
+
+    // Returns the length of the valid prefix of the segment
+    private long scanSegment(int id, List<Entry> entries) throws IOException {
+        long pos = 0;
+        CRC32 crc = new CRC32();
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(segmentFile(id))))) {
+            while (true) {
+                int hashLen = in.readInt();
+                int dataLen = in.readInt();
+                int checksum = in.readInt();
+                boolean compressed = (hashLen & COMPRESSED) != 0;
+                hashLen &= ~COMPRESSED;
+                if (hashLen <= 0 || hashLen > MAX_HASH_SIZE || dataLen < TOMBSTONE || dataLen > MAX_BLOCK_SIZE) {
+                    break;
+                }
+
+                byte[] hashBytes = new byte[hashLen];
+                byte[] data = new byte[Math.max(dataLen, 0)];
+                in.readFully(hashBytes);
+                in.readFully(data);
+
+                crc.reset();
+                crc.update(hashBytes);
+                crc.update(data);
+                if ((int) crc.getValue() != checksum) {
+                    break;
+                }
+
+                Entry entry = new Entry(new String(hashBytes, StandardCharsets.UTF_8), pos + HEADER_SIZE + hashLen,
+                        dataLen, compressed);
+                apply(id, entry);
+                entries.add(entry);
+                pos += HEADER_SIZE + hashLen + data.length;
+            }
+        } catch (EOFException e) {
+            // Reached the end of the segment, possibly in the middle of a torn record
+        }
+
+        return pos;
+    }
+
+    @Override
+    public void put(Block block) throws IOException {
+        if (index.containsKey(block.getHash())) {
+            return;
+        }
+
+        synchronized (writeLock) {
+            if (!index.containsKey(block.getHash())) {
+                append(block.getHash(), block.getData(), block.getCompressed());
+            }
+        }
+    }
+
+    private void append(String hash, ByteString data, boolean compressed) throws IOException {
+        long offset = writeRecord(hash, data, data.size(), compressed);
+        index.put(hash, new Location(activeId, offset, data.size(), compressed));
+        liveBytes.merge(activeId, (long) data.size(), Long::sum);
+        activeEntries.add(new Entry(hash, offset, data.size(), compressed));
+        maybeSeal();
+    }
+
+    private void appendTombstone(String hash) throws IOException {
+        long offset = writeRecord(hash, ByteString.EMPTY, TOMBSTONE, false);
+        activeEntries.add(new Entry(hash, offset, TOMBSTONE, false));
+        maybeSeal();
+    }
+
+    // Returns the offset of the data in the active segment
+    private long writeRecord(String hash, ByteString data, int dataLen, boolean compressed) throws IOException {
+        byte[] hashBytes = hash.getBytes(StandardCharsets.UTF_8);
+        CRC32 crc = new CRC32();
+        crc.update(hashBytes);
+        // The data is written straight from the buffers behind the ByteString
+        List<ByteBuffer> dataBuffers = data.asReadOnlyByteBufferList();
+        for (ByteBuffer buf : dataBuffers) {
+            crc.update(buf.duplicate());
+        }
+
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(compressed ? hashBytes.length | COMPRESSED : hashBytes.length).putInt(dataLen).putInt((int) crc.getValue()).flip();
+        ByteBuffer[] record = new ByteBuffer[2 + dataBuffers.size()];
+        record[0] = header;
+        record[1] = ByteBuffer.wrap(hashBytes);
+        for (int i = 0; i < dataBuffers.size(); i++) {
+            record[2 + i] = dataBuffers.get(i);
+        }
+
+        long recordSize = HEADER_SIZE + hashBytes.length + data.size();
+        long remaining = recordSize;
+        while (remaining > 0) {
+            remaining -= active.write(record);
+        }
+
+        long offset = activeSize + HEADER_SIZE + hashBytes.length;
+        activeSize += recordSize;
+        written += recordSize;
+        return offset;
+    }
+
+    private void maybeSeal() throws IOException {
+        if (activeSize >= segmentSize) {
+            seal();
+        }
+    }
+
+    private void seal() throws IOException {
+        active.force(false);
+        active.close();
+        writeIndex(activeId, activeEntries);
+
+        activeId++;
+        activeEntries = new ArrayList<>();
+        readers.put(activeId, openSegment(activeId));
+        openActive(0);
+        // Blocks acked from the new segment are only durable once its name is
+        syncDir();
+        map(activeId - 1);
+    }
+
+    @Override
+    public boolean delete(String hash) throws IOException {
+        synchronized (writeLock) {
+            Location loc = index.remove(hash);
+            if (loc == null) {
+                return false;
+            }
+
+            appendTombstone(hash);
+            BlockCache cache = cacheStripe(hash);
+            synchronized (cache) {
+                cache.remove(hash);
+            }
+            if (liveBytes.merge(loc.segment, (long) -loc.length, Long::sum) * 2 < segmentSize
+                    && loc.segment != activeId && readers.containsKey(loc.segment)
+                    && compacting.add(loc.segment)) {
+                int id = loc.segment;
+                compactor.execute(() -> {
+                    try {
+                        compact(id);
+                    } catch (IOException e) {
+                        logger.warning("Unable to compact segment " + id + ": " + e.getMessage());
+                    } finally {
+                        compacting.remove(id);
+                    }
+                });
+            }
+            return true;
+        }
+    }
+
+    // Runs on the compactor thread. Copies the live blocks of a sealed segment to the active one
+    // and removes it. Its tombstones are carried over while an older segment may still hold the
+    // block they delete. Whether a record is still live is checked under writeLock right before
+    // it is copied, so a block deleted meanwhile stays deleted.
+    private void compact(int id) throws IOException {
+        List<Entry> entries = readIndex(id);
+        if (entries == null) {
+            return;
+        }
+
+        boolean olderSegments = false;
+        for (int segment : readers.keySet()) {
+            olderSegments |= segment < id;
+        }
+
+        ByteBuffer mapping = mappings.get(id);
+        int copied = 0;
+        for (Entry entry : entries) {
+            if (closing) {
+                return;
+            }
+
+            if (entry.length == TOMBSTONE) {
+                if (olderSegments) {
+                    synchronized (writeLock) {
+                        if (!index.containsKey(entry.hash)) {
+                            appendTombstone(entry.hash);
+                        }
+                    }
+                }
+                continue;
+            }
+
+            Location loc = index.get(entry.hash);
+            if (loc == null || loc.segment != id || loc.offset != entry.offset) {
+                continue;
+            }
+            ByteString data = mapping != null ? slice(mapping, loc)
+                    : UnsafeByteOperations.unsafeWrap(read(entry.hash, loc));
+            synchronized (writeLock) {
+                if (index.get(entry.hash) == loc) {
+                    append(entry.hash, data, loc.compressed);
+                    copied++;
+                }
+            }
+        }
+
+        synchronized (writeLock) {
+            if (closing) {
+                return;
+            }
+            // The copies must be on disk before the originals go
+            active.force(false);
+            mappings.remove(id);
+            readers.remove(id).close();
+            liveBytes.remove(id);
+        }
+        Files.deleteIfExists(indexFile(id).toPath());
+        Files.deleteIfExists(segmentFile(id).toPath());
+        logger.info(String.format("Compacted segment %d, copied %d live blocks", id, copied));
+    }
+
+    @Override
+    public Block get(String hash) throws IOException {
+        while (true) {
+            Location loc = index.get(hash);
+            if (loc == null) {
+                return null;
+            }
+
+            if (reads.incrementAndGet() % CACHE_REPORT_READS == 0) {
+                reportCacheHits();
+            }
+            // A cached block carries its own compressed flag, loc may already be outdated by a
+            // delete and a put of the block the other way
+            BlockCache cache = cacheStripe(hash);
+            Block cached;
+            boolean seenBefore;
+            synchronized (cache) {
+                cached = cache.get(hash);
+                seenBefore = cache.frequency(hash) > 1;
+            }
+            if (cached != null) {
+                return cached;
+            }
+
+            ByteBuffer mapping = mappings.get(loc.segment);
+            if (mapping != null) {
+                ByteString data = slice(mapping, loc);
+                if (seenBefore) {
+                    synchronized (cache) {
+                        cache.put(hash, toBlock(hash, loc, UnsafeByteOperations.unsafeWrap(data.toByteArray())));
+                    }
+                }
+                return toBlock(hash, loc, data);
+            }
+
+            Block block;
+            try {
+                block = toBlock(hash, loc, UnsafeByteOperations.unsafeWrap(read(hash, loc)));
+            } catch (ClosedChannelException e) {
+                // The segment was compacted away meanwhile, unless the block is still there
+                if (index.get(hash) == loc) {
+                    throw e;
+                }
+                continue;
+            }
+
+            synchronized (cache) {
+                cache.put(hash, block);
+            }
+            return block;
+        }
+    }
+
+    private static Block toBlock(String hash, Location loc, ByteString data) {
+        return Block.newBuilder().setHash(hash).setData(data).setCompressed(loc.compressed).build();
+    }
+
+    private static ByteString slice(ByteBuffer mapping, Location loc) {
+        ByteBuffer block = mapping.duplicate();
+        block.position((int) loc.offset).limit((int) loc.offset + loc.length);
+        return UnsafeByteOperations.unsafeWrap(block.slice());
+    }
+
+    private void reportCacheHits() {
+        long hits = 0;
+        long misses = 0;
+        for (BlockCache cache : cacheStripes) {
+            synchronized (cache) {
+                hits += cache.hits();
+                misses += cache.misses();
+            }
+        }
+        logger.info(String.format("Block cache hit rate %.1f%% over %d reads", 100.0 * hits / (hits + misses),
+                hits + misses));
+    }
+
+    private BlockCache cacheStripe(String hash) {
+        return cacheStripes[(hash.hashCode() & 0x7fffffff) % CACHE_STRIPES];
+    }
+
+    private byte[] read(String hash, Location loc) throws IOException {
+        FileChannel channel = readers.get(loc.segment);
+        if (channel == null) {
+            throw new ClosedChannelException();
+        }
+
+        byte[] data = new byte[loc.length];
+        ByteBuffer buf = ByteBuffer.wrap(data);
+        while (buf.hasRemaining()) {
+            if (channel.read(buf, loc.offset + buf.position()) < 0) {
+                throw new EOFException("Block " + hash + " truncated in segment " + loc.segment);
+            }
+        }
+        return data;
+    }
+
+    @Override
+    public boolean contains(String hash) {
+        return index.containsKey(hash);
+    }
+
+    // Group commit: whoever gets syncLock forces everything written so far, the callers waiting
+    // behind it usually find their writes already covered. Sealed segments were forced when
+    // they were sealed, only the active one is forced here.
+    @Override
+    public void sync() throws IOException {
+        long target = written;
+        synchronized (syncLock) {
+            if (synced >= target) {
+                return;
+            }
+
+            FileChannel channel;
+            long upTo;
+            synchronized (writeLock) {
+                channel = active;
+                upTo = written;
+            }
+            try {
+                channel.force(false);
+            } catch (ClosedChannelException e) {
+                // Sealed meanwhile, which forced it
+            }
+            synced = upTo;
+        }
+    }
+
+    // A compaction cut short leaves its segment in place, the copies made so far are newer
+    // records of the same blocks
+    @Override
+    public void close() throws IOException {
+        closing = true;
+        compactor.shutdown();
+        try {
+            compactor.awaitTermination(CLOSE_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        synchronized (writeLock) {
+            active.force(false);
+            active.close();
+            for (FileChannel channel : readers.values()) {
+                channel.close();
+            }
+        }
+    }
+}